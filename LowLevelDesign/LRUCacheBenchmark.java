@@ -0,0 +1,115 @@
+package TargetedPractice.LRUCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// JMH harness for the cache implementations in LRUCacheTP.java: throughput and sampled latency of
+// put/value for read/write mixes of 100/0, 90/10 and 50/50 over uniform and Zipfian keys.
+// Needs jmh-core on the classpath and jmh-generator-annprocess as an annotation processor:
+//   javac -cp jmh-core.jar -processorpath jmh-generator-annprocess.jar:jmh-core.jar -d out *.java
+//   java -cp out:jmh-core.jar:jopt-simple.jar:commons-math3.jar TargetedPractice.LRUCache.LRUCacheBenchmark [threads...]
+// Each thread count writes lru-benchmark-<threads>t.json, so runs can be diffed for regressions.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LRUCacheBenchmark {
+    static final int CAPACITY = 1 << 16;
+    // twice the capacity so uniform traffic misses about half the time
+    static final int KEY_SPACE = CAPACITY * 2;
+    static final int OPS = 1 << 16;
+    static final int[] DEFAULT_THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    @State(Scope.Benchmark)
+    public static class CacheState {
+        @Param({"LRUCache", "SegmentedLRUCache", "ReadBufferedLRUCache", "WTinyLfu"})
+        public String implementation;
+
+        Cache<Integer, Integer> cache;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            switch (implementation) {
+                case "LRUCache" -> cache = new LRUCache<>(CAPACITY);
+                case "SegmentedLRUCache" -> cache = new SegmentedLRUCache<>(CAPACITY);
+                case "ReadBufferedLRUCache" -> cache = new ReadBufferedLRUCache<>(CAPACITY);
+                case "WTinyLfu" -> cache = new LRUCache<>(CAPACITY, new WTinyLfuPolicy<>(CAPACITY));
+                default -> throw new IllegalArgumentException("Unknown implementation: " + implementation);
+            }
+            for(int key = 0; key < CAPACITY; key++) cache.put(key, key);
+        }
+    }
+
+    // Keys and read/write decisions are precomputed per thread so the measured loop is only cache calls.
+    @State(Scope.Thread)
+    public static class Workload {
+        @Param({"100", "90", "50"})
+        public int readPercent;
+
+        @Param({"uniform", "zipfian"})
+        public String distribution;
+
+        int[] keys;
+        boolean[] reads;
+        int cursor;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            Random random = new Random(ThreadLocalRandom.current().nextLong());
+            ZipfianGenerator zipfian = distribution.equals("zipfian") ? new ZipfianGenerator(KEY_SPACE, 0.99) : null;
+            keys = new int[OPS];
+            reads = new boolean[OPS];
+            for(int i = 0; i < OPS; i++){
+                keys[i] = zipfian != null ? zipfian.next(random) : random.nextInt(KEY_SPACE);
+                reads[i] = random.nextInt(100) < readPercent;
+            }
+        }
+    }
+
+    @Benchmark
+    public Integer operation(CacheState state, Workload workload){
+        int i = workload.cursor++ & (OPS - 1);
+        int key = workload.keys[i];
+        if(workload.reads[i])
+            return state.cache.value(key);
+        state.cache.put(key, key);
+        return key;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int[] threadCounts = DEFAULT_THREADS;
+        if(args.length > 0){
+            threadCounts = new int[args.length];
+            for(int i = 0; i < args.length; i++) threadCounts[i] = Integer.parseInt(args[i]);
+        }
+        for(int threads : threadCounts){
+            Options options = new OptionsBuilder()
+                    .include(LRUCacheBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("lru-benchmark-" + threads + "t.json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
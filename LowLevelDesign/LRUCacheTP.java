@@ -1,13 +1,70 @@
 package TargetedPractice.LRUCache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 class Node<T, U>{
     T key;
     U value;
     Node<T, U> prev;
     Node<T, U> next;
+    // which queue of a segmented policy holds the node; unused by plain LRU
+    int region;
+    // weight charged when the value was stored, so eviction does not re-weigh
+    int weight;
 
     public Node(T key, U value){
         this.key = key;
@@ -26,66 +83,2254 @@ class DLL<T, U>{
         head.next = tail;
         tail.prev = head;
     }
-}
-
-class LRUCache<T, U>{
-    int capacity;
-    DLL<T, U> dll;
-    Map<T, Node<T, U>> values = new HashMap<>();
-    public LRUCache(int capacity){
-        this.capacity = capacity;
-        dll = new DLL<>();
+    void addFirst(Node<T, U> node){
+        Node<T, U> nxtNode = head.next;
+        head.next = node;
+        node.next = nxtNode;
+        node.prev = head;
+        nxtNode.prev = node;
     }
-    private void deleteNode(Node<T, U> node){
+    void unlink(Node<T, U> node){
         Node<T, U> prevNode = node.prev;
         Node<T, U> nextNode = node.next;
         prevNode.next = nextNode;
         nextNode.prev = prevNode;
+        // a null prev marks the node as no longer linked
+        node.prev = null;
+        node.next = null;
     }
-    private void addNode(Node<T, U> node){
-        Node<T, U> nxtNode = dll.head.next;
-        dll.head.next = node;
-        node.next = nxtNode;
-        node.prev = dll.head;
-        nxtNode.prev = node;
+    void forEachFromTail(Consumer<Node<T, U>> action){
+        for(Node<T, U> node = tail.prev; node != head; node = node.prev) action.accept(node);
     }
-    public synchronized void put(T key, U value){
-        if(values.containsKey(key)){
-            Node<T, U> node = values.get(key);
-            deleteNode(node);
+}
+
+interface Cache<T, U>{
+    void put(T key, U value);
+    U value(T key);
+}
+
+// Decides which entry leaves the cache. The policy owns the ordering links of every node;
+// LRUCache only owns the key -> node map.
+interface EvictionPolicy<T, U>{
+    void onInsert(Node<T, U> node);
+    void onAccess(Node<T, U> node);
+    void onRemove(Node<T, U> node);
+    // Unlinks and returns the entry to drop once the cache is over capacity.
+    // May return the entry that was just inserted, which is how admission is rejected.
+    Node<T, U> evict();
+    // Visits entries roughly in the order they would be evicted, next victim first.
+    void forEachColdestFirst(Consumer<Node<T, U>> action);
+}
+
+class LruPolicy<T, U> implements EvictionPolicy<T, U>{
+    private final DLL<T, U> dll = new DLL<>();
+
+    @Override
+    public void onInsert(Node<T, U> node){
+        dll.addFirst(node);
+    }
+
+    @Override
+    public void onAccess(Node<T, U> node){
+        dll.unlink(node);
+        dll.addFirst(node);
+    }
+
+    @Override
+    public void onRemove(Node<T, U> node){
+        dll.unlink(node);
+    }
+
+    @Override
+    public Node<T, U> evict(){
+        Node<T, U> eldest = dll.tail.prev;
+        dll.unlink(eldest);
+        return eldest;
+    }
+
+    @Override
+    public void forEachColdestFirst(Consumer<Node<T, U>> action){
+        dll.forEachFromTail(action);
+    }
+}
+
+// Log-linear latency histogram in the style of HdrHistogram: 32 linear sub-buckets per power of
+// two, so any recorded value is reported within ~3% of its true magnitude.
+class LatencyHistogram{
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // up to 2^40 ns (~18 minutes); anything slower lands in the last bucket
+    static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos){
+        counts.incrementAndGet(indexOf(nanos));
+    }
+
+    static int indexOf(long value){
+        if(value < SUB_BUCKETS)
+            return (int) Math.max(0, value);
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) Math.min(value >>> shift, 2 * SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub - SUB_BUCKETS;
+    }
+
+    // Highest value that maps to the bucket.
+    static long valueOf(int index){
+        if(index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public LatencySnapshot snapshot(){
+        long[] copy = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+        return new LatencySnapshot(copy);
+    }
+}
+
+class LatencySnapshot{
+    private final long[] counts;
+    final long count;
+
+    public LatencySnapshot(long[] counts){
+        this.counts = counts;
+        long total = 0;
+        for(long c : counts) total += c;
+        this.count = total;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100), in nanoseconds.
+    public long percentile(double percentile){
+        if(count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if(seen >= rank) return LatencyHistogram.valueOf(i);
+        }
+        return LatencyHistogram.valueOf(counts.length - 1);
+    }
+
+    public LatencySnapshot plus(LatencySnapshot other){
+        long[] sum = counts.clone();
+        for(int i = 0; i < sum.length; i++) sum[i] += other.counts[i];
+        return new LatencySnapshot(sum);
+    }
+
+    @Override
+    public String toString(){
+        return String.format("n=%d p50=%dns p99=%dns p99.9=%dns max=%dns",
+                count, percentile(50), percentile(99), percentile(99.9), percentile(100));
+    }
+}
+
+// Cumulative and monotonic, so an exporter can poll and diff successive snapshots.
+class CacheStatsSnapshot{
+    final long hits;
+    final long misses;
+    final long puts;
+    final long evictions;
+    final LatencySnapshot putLatency;
+    final LatencySnapshot valueLatency;
+
+    public CacheStatsSnapshot(long hits, long misses, long puts, long evictions,
+                              LatencySnapshot putLatency, LatencySnapshot valueLatency){
+        this.hits = hits;
+        this.misses = misses;
+        this.puts = puts;
+        this.evictions = evictions;
+        this.putLatency = putLatency;
+        this.valueLatency = valueLatency;
+    }
+
+    public double hitRate(){
+        long requests = hits + misses;
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+    public CacheStatsSnapshot plus(CacheStatsSnapshot other){
+        return new CacheStatsSnapshot(hits + other.hits, misses + other.misses, puts + other.puts,
+                evictions + other.evictions, putLatency.plus(other.putLatency), valueLatency.plus(other.valueLatency));
+    }
+
+    @Override
+    public String toString(){
+        return String.format("hits=%d misses=%d hitRate=%.3f puts=%d evictions=%d%n  put   [%s]%n  value [%s]",
+                hits, misses, hitRate(), puts, evictions, putLatency, valueLatency);
+    }
+}
+
+// Counters and histograms behind runtime switches. Counters are LongAdders (striped per core) so
+// concurrent recording does not contend; with recording off the cost is one volatile read.
+class CacheStats{
+    private volatile boolean recordCounts;
+    private volatile boolean recordLatency;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LatencyHistogram putLatency = new LatencyHistogram();
+    private final LatencyHistogram valueLatency = new LatencyHistogram();
+
+    public void setRecordCounts(boolean enabled){ recordCounts = enabled; }
+    public void setRecordLatency(boolean enabled){ recordLatency = enabled; }
+    boolean recordingLatency(){ return recordLatency; }
+
+    void recordHit(){ if(recordCounts) hits.increment(); }
+    void recordMiss(){ if(recordCounts) misses.increment(); }
+    void recordPut(){ if(recordCounts) puts.increment(); }
+    void recordEviction(){ if(recordCounts) evictions.increment(); }
+    void recordPutLatency(long nanos){ putLatency.record(nanos); }
+    void recordValueLatency(long nanos){ valueLatency.record(nanos); }
+
+    public CacheStatsSnapshot snapshot(){
+        return new CacheStatsSnapshot(hits.sum(), misses.sum(), puts.sum(), evictions.sum(),
+                putLatency.snapshot(), valueLatency.snapshot());
+    }
+}
+
+// Told about every mutation while the cache lock is held, so events arrive in mutation order.
+// Implementations must be quick; evictions and explicit removals both surface as onRemove.
+interface CacheListener<T, U>{
+    void onPut(T key, U value);
+    void onRemove(T key);
+}
+
+@FunctionalInterface
+interface Weigher<T, U>{
+    int weigh(T key, U value);
+}
+
+class LRUCache<T, U> implements Cache<T, U>{
+    long maximumWeight;
+    long weightedSize;
+    Weigher<T, U> weigher;
+    EvictionPolicy<T, U> policy;
+    Map<T, Node<T, U>> values = new HashMap<>();
+    final CacheStats stats = new CacheStats();
+    CacheListener<T, U> listener;
+    public LRUCache(int capacity){
+        this(capacity, new LruPolicy<>());
+    }
+    // every entry weighs 1, so the maximum weight is the entry count
+    public LRUCache(int capacity, EvictionPolicy<T, U> policy){
+        this(capacity, (key, value) -> 1, policy);
+    }
+    public LRUCache(long maximumWeight, Weigher<T, U> weigher){
+        this(maximumWeight, weigher, new LruPolicy<>());
+    }
+    public LRUCache(long maximumWeight, Weigher<T, U> weigher, EvictionPolicy<T, U> policy){
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.policy = policy;
+    }
+    // Latency covers lock wait as well, which is what callers actually experience.
+    public void put(T key, U value){
+        if(!stats.recordingLatency()){
+            store(key, value);
+            return;
+        }
+        long start = System.nanoTime();
+        store(key, value);
+        stats.recordPutLatency(System.nanoTime() - start);
+    }
+
+    public U value(T key){
+        if(!stats.recordingLatency())
+            return lookup(key);
+        long start = System.nanoTime();
+        U value = lookup(key);
+        stats.recordValueLatency(System.nanoTime() - start);
+        return value;
+    }
+
+    private synchronized void store(T key, U value){
+        int weight = weigher.weigh(key, value);
+        if(weight < 0)
+            throw new IllegalArgumentException("negative weight " + weight + " for key " + key);
+        stats.recordPut();
+        Node<T, U> node = values.get(key);
+        if(weight > maximumWeight){
+            // could never fit; drop the old mapping rather than flushing the whole cache for it
+            if(node != null) remove(key);
+            return;
+        }
+        if(node != null){
+            weightedSize += weight - node.weight;
             node.value = value;
-            values.put(node.key, node);
-            addNode(node);
-        } else if (values.size() == capacity) {
-            values.remove(dll.tail.prev.key);
-            deleteNode(dll.tail.prev);
-            Node<T, U> newNode = new Node<>(key, value);
-            values.put(newNode.key, newNode);
-            addNode(newNode);
+            node.weight = weight;
+            policy.onAccess(node);
         }
         else{
             Node<T, U> newNode = new Node<>(key, value);
+            newNode.weight = weight;
             values.put(newNode.key, newNode);
-            addNode(newNode);
+            weightedSize += weight;
+            policy.onInsert(newNode);
+        }
+        if(listener != null) listener.onPut(key, value);
+        while(weightedSize > maximumWeight){
+            Node<T, U> victim = policy.evict();
+            values.remove(victim.key);
+            weightedSize -= victim.weight;
+            stats.recordEviction();
+            if(listener != null) listener.onRemove(victim.key);
         }
     }
 
-    public synchronized U value(T key){
-        if(values.containsKey(key)){
-            Node<T, U> node = values.get(key);
-            deleteNode(node);
-            addNode(node);
+    private synchronized U lookup(T key){
+        Node<T, U> node = values.get(key);
+        if(node != null){
+            stats.recordHit();
+            policy.onAccess(node);
             return node.value;
         }
-        else
+        else{
+            stats.recordMiss();
+            return null;
+        }
+    }
+
+    public synchronized U remove(T key){
+        Node<T, U> node = values.remove(key);
+        if(node == null)
+            return null;
+        weightedSize -= node.weight;
+        policy.onRemove(node);
+        if(listener != null) listener.onRemove(key);
+        return node.value;
+    }
+
+    public synchronized int size(){
+        return values.size();
+    }
+
+    public synchronized long weightedSize(){
+        return weightedSize;
+    }
+
+    public CacheStatsSnapshot stats(){
+        return stats.snapshot();
+    }
+
+    public void setRecordStats(boolean enabled){
+        stats.setRecordCounts(enabled);
+    }
+
+    public void setRecordLatency(boolean enabled){
+        stats.setRecordLatency(enabled);
+    }
+
+    // Removes the entry only if it still maps to exactly this value (identity, not equals).
+    public synchronized boolean remove(T key, U expected){
+        Node<T, U> node = values.get(key);
+        if(node == null || node.value != expected)
+            return false;
+        values.remove(key);
+        weightedSize -= node.weight;
+        policy.onRemove(node);
+        if(listener != null) listener.onRemove(key);
+        return true;
+    }
+
+    public synchronized void setListener(CacheListener<T, U> listener){
+        this.listener = listener;
+    }
+
+    // Snapshot of the contents, next eviction victim first and most recently used last, so
+    // putting them back in this order rebuilds the same recency order.
+    public synchronized List<Map.Entry<T, U>> entriesColdestFirst(){
+        List<Map.Entry<T, U>> entries = new ArrayList<>(values.size());
+        policy.forEachColdestFirst(node -> entries.add(new AbstractMap.SimpleImmutableEntry<>(node.key, node.value)));
+        return entries;
+    }
+
+}
+
+// Count-min sketch of 4 rows of saturating 4-bit counters (kept in bytes for readability).
+// Every sampleSize increments all counters are halved so old popularity fades out.
+class FrequencySketch<T>{
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final int MAX_COUNT = 15;
+
+    private final byte[][] rows;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    public FrequencySketch(int capacity){
+        int width = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        rows = new byte[SEEDS.length][width];
+        mask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    private int indexOf(int hash, int row){
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += (h >>> 32);
+        return (int) h & mask;
+    }
+
+    private static int spread(Object key){
+        int h = Objects.hashCode(key) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public void increment(T key){
+        int hash = spread(key);
+        boolean added = false;
+        for(int row = 0; row < rows.length; row++){
+            int index = indexOf(hash, row);
+            if(rows[row][index] < MAX_COUNT){
+                rows[row][index]++;
+                added = true;
+            }
+        }
+        if(added && ++additions >= sampleSize)
+            reset();
+    }
+
+    public int frequency(T key){
+        int hash = spread(key);
+        int min = MAX_COUNT;
+        for(int row = 0; row < rows.length; row++){
+            min = Math.min(min, rows[row][indexOf(hash, row)]);
+        }
+        return min;
+    }
+
+    private void reset(){
+        for(byte[] row : rows){
+            for(int i = 0; i < row.length; i++) row[i] >>>= 1;
+        }
+        additions >>>= 1;
+    }
+}
+
+// W-TinyLFU: new entries land in a small LRU window (1% of capacity). Entries spilling out of the
+// window enter the probation segment of an SLRU main region only if the frequency sketch rates them
+// above the main region's coldest entry; a second hit promotes probation entries to protected.
+class WTinyLfuPolicy<T, U> implements EvictionPolicy<T, U>{
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final DLL<T, U> window = new DLL<>();
+    private final DLL<T, U> probation = new DLL<>();
+    private final DLL<T, U> protectedSegment = new DLL<>();
+    private final int maxWindow;
+    private final int maxProtected;
+    private int windowSize;
+    private int protectedSize;
+    private final FrequencySketch<T> sketch;
+    // last entry moved from the window into probation; it has to win admission against the main victim
+    private Node<T, U> candidate;
+
+    public WTinyLfuPolicy(int capacity){
+        maxWindow = Math.max(1, capacity / 100);
+        maxProtected = (int) ((capacity - maxWindow) * 0.8);
+        sketch = new FrequencySketch<>(capacity);
+    }
+
+    @Override
+    public void onInsert(Node<T, U> node){
+        sketch.increment(node.key);
+        node.region = WINDOW;
+        window.addFirst(node);
+        if(++windowSize > maxWindow){
+            Node<T, U> spilled = window.tail.prev;
+            window.unlink(spilled);
+            windowSize--;
+            spilled.region = PROBATION;
+            probation.addFirst(spilled);
+            candidate = spilled;
+        }
+    }
+
+    @Override
+    public void onAccess(Node<T, U> node){
+        sketch.increment(node.key);
+        if(node.region == WINDOW){
+            window.unlink(node);
+            window.addFirst(node);
+        } else if (node.region == PROTECTED) {
+            protectedSegment.unlink(node);
+            protectedSegment.addFirst(node);
+        } else {
+            if(node == candidate) candidate = null;
+            probation.unlink(node);
+            node.region = PROTECTED;
+            protectedSegment.addFirst(node);
+            if(++protectedSize > maxProtected){
+                Node<T, U> demoted = protectedSegment.tail.prev;
+                protectedSegment.unlink(demoted);
+                protectedSize--;
+                demoted.region = PROBATION;
+                probation.addFirst(demoted);
+            }
+        }
+    }
+
+    @Override
+    public void onRemove(Node<T, U> node){
+        if(node == candidate) candidate = null;
+        if(node.region == WINDOW){
+            window.unlink(node);
+            windowSize--;
+        } else if (node.region == PROTECTED) {
+            protectedSegment.unlink(node);
+            protectedSize--;
+        } else {
+            probation.unlink(node);
+        }
+    }
+
+    @Override
+    public Node<T, U> evict(){
+        Node<T, U> victim = coldestInMain();
+        Node<T, U> challenger = candidate;
+        candidate = null;
+        if(victim == null){
+            victim = window.tail.prev;
+        } else if (challenger != null && challenger != victim
+                && sketch.frequency(challenger.key) <= sketch.frequency(victim.key)) {
+            victim = challenger;
+        }
+        onRemove(victim);
+        return victim;
+    }
+
+    @Override
+    public void forEachColdestFirst(Consumer<Node<T, U>> action){
+        probation.forEachFromTail(action);
+        protectedSegment.forEachFromTail(action);
+        window.forEachFromTail(action);
+    }
+
+    private Node<T, U> coldestInMain(){
+        Node<T, U> victim = probation.tail.prev;
+        if(victim == probation.head || victim == candidate && victim.prev == probation.head){
+            // nothing in probation besides the candidate itself: fall back to protected
+            Node<T, U> coldProtected = protectedSegment.tail.prev;
+            if(coldProtected != protectedSegment.head) return coldProtected;
+        }
+        return victim == probation.head ? null : victim;
+    }
+}
+
+@FunctionalInterface
+interface CacheLoader<T, U>{
+    U load(T key) throws Exception;
+}
+
+// Durations are optional; null disables that kind of expiry.
+class ExpiryConfig{
+    final long expireAfterWriteNanos;
+    final long expireAfterAccessNanos;
+    final long refreshAfterWriteNanos;
+
+    public ExpiryConfig(Duration expireAfterWrite, Duration expireAfterAccess, Duration refreshAfterWrite){
+        this.expireAfterWriteNanos = expireAfterWrite == null ? 0 : expireAfterWrite.toNanos();
+        this.expireAfterAccessNanos = expireAfterAccess == null ? 0 : expireAfterAccess.toNanos();
+        this.refreshAfterWriteNanos = refreshAfterWrite == null ? 0 : refreshAfterWrite.toNanos();
+    }
+}
+
+class Expirable<U>{
+    final U value;
+    final long writeNanos;
+    // per-entry time to live, 0 when the entry only expires after access (or never)
+    final long ttlNanos;
+    volatile long accessNanos;
+
+    public Expirable(U value, long writeNanos, long ttlNanos){
+        this.value = value;
+        this.writeNanos = writeNanos;
+        this.ttlNanos = ttlNanos;
+        this.accessNanos = writeNanos;
+    }
+
+    boolean isExpired(long now, ExpiryConfig config){
+        return (ttlNanos > 0 && now - writeNanos >= ttlNanos)
+                || (config.expireAfterAccessNanos > 0 && now - accessNanos >= config.expireAfterAccessNanos);
+    }
+
+    // Earliest time the entry can expire, or Long.MAX_VALUE if it never does.
+    long deadline(ExpiryConfig config){
+        long deadline = Long.MAX_VALUE;
+        if(ttlNanos > 0) deadline = writeNanos + ttlNanos;
+        if(config.expireAfterAccessNanos > 0) deadline = Math.min(deadline, accessNanos + config.expireAfterAccessNanos);
+        return deadline;
+    }
+}
+
+// Hashed timer wheel: each slot covers one tick, timers more than one revolution away stay in
+// their slot until their round comes up. Scheduling and firing are O(1) per timer, so expiry
+// never scans the cache.
+class TimerWheel<K, V>{
+    interface Listener<K, V>{
+        void onExpired(K key, V value, long now);
+    }
+
+    private static class Timer<K, V>{
+        final K key;
+        final V value;
+        final long deadline;
+
+        Timer(K key, V value, long deadline){
+            this.key = key;
+            this.value = value;
+            this.deadline = deadline;
+        }
+    }
+
+    private final ArrayDeque<Timer<K, V>>[] slots;
+    private final long tickNanos;
+    private final int mask;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long currentTick; // the last tick whose slot has been drained
+
+    public TimerWheel(long tickNanos, int slotCount, long now){
+        int count = Integer.highestOneBit(slotCount);
+        @SuppressWarnings("unchecked")
+        ArrayDeque<Timer<K, V>>[] slots = (ArrayDeque<Timer<K, V>>[]) new ArrayDeque<?>[count];
+        this.slots = slots;
+        for(int i = 0; i < count; i++) slots[i] = new ArrayDeque<>();
+        this.tickNanos = tickNanos;
+        this.mask = count - 1;
+        this.currentTick = Math.floorDiv(now, tickNanos) - 1;
+    }
+
+    public void schedule(K key, V value, long deadline){
+        lock.lock();
+        try{
+            long tick = Math.max(Math.floorDiv(deadline, tickNanos), currentTick + 1);
+            slots[(int) (tick & mask)].add(new Timer<>(key, value, deadline));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Fires the timers of every tick that has fully passed, so a timer fires at most one tick
+    // after its deadline; timers left in a drained slot belong to a later lap of the wheel.
+    // Returns immediately if another thread is already advancing, so callers on the hot path
+    // never wait here.
+    public void advance(long now, Listener<K, V> listener){
+        if(!lock.tryLock())
+            return;
+        try{
+            long targetTick = Math.floorDiv(now, tickNanos) - 1;
+            long ticks = Math.min(targetTick - currentTick, slots.length);
+            for(long t = 1; t <= ticks; t++){
+                ArrayDeque<Timer<K, V>> slot = slots[(int) ((currentTick + t) & mask)];
+                for(int n = slot.size(); n > 0; n--){
+                    Timer<K, V> timer = slot.poll();
+                    if(timer.deadline - now <= 0) listener.onExpired(timer.key, timer.value, now);
+                    else slot.add(timer);
+                }
+            }
+            currentTick = Math.max(currentTick, targetTick);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+// LRU cache that loads missing values itself. Concurrent misses on a key share one
+// CompletableFuture, entries past refreshAfterWrite are served stale while a reload runs in the
+// background, and expired entries are dropped by a TimerWheel as time moves forward.
+class LoadingLRUCache<T, U> implements Cache<T, U>{
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WHEEL_SLOTS = 1024;
+
+    private final LRUCache<T, Expirable<U>> cache;
+    private final CacheLoader<T, U> loader;
+    private final ExpiryConfig expiry;
+    private final Executor executor;
+    private final Map<T, CompletableFuture<U>> inFlight = new ConcurrentHashMap<>();
+    private final TimerWheel<T, Expirable<U>> wheel = new TimerWheel<>(TICK_NANOS, WHEEL_SLOTS, System.nanoTime());
+    private final TimerWheel.Listener<T, Expirable<U>> onExpired = this::expire;
+
+    public LoadingLRUCache(int capacity, CacheLoader<T, U> loader, ExpiryConfig expiry){
+        this(capacity, loader, expiry, ForkJoinPool.commonPool());
+    }
+
+    public LoadingLRUCache(int capacity, CacheLoader<T, U> loader, ExpiryConfig expiry, Executor executor){
+        this.cache = new LRUCache<>(capacity);
+        this.loader = loader;
+        this.expiry = expiry;
+        this.executor = executor;
+    }
+
+    @Override
+    public void put(T key, U value){
+        put(key, value, expiry.expireAfterWriteNanos);
+    }
+
+    public void put(T key, U value, Duration ttl){
+        put(key, value, ttl.toNanos());
+    }
+
+    private void put(T key, U value, long ttlNanos){
+        long now = System.nanoTime();
+        Expirable<U> entry = new Expirable<>(value, now, ttlNanos);
+        cache.put(key, entry);
+        long deadline = entry.deadline(expiry);
+        if(deadline != Long.MAX_VALUE)
+            wheel.schedule(key, entry, deadline);
+        wheel.advance(now, onExpired);
+    }
+
+    // Returns the cached value without loading, or null.
+    @Override
+    public U value(T key){
+        Expirable<U> entry = fresh(key, System.nanoTime());
+        return entry == null ? null : entry.value;
+    }
+
+    public U get(T key){
+        Expirable<U> entry = fresh(key, System.nanoTime());
+        return entry != null ? entry.value : load(key).join();
+    }
+
+    public CompletableFuture<U> getAsync(T key){
+        Expirable<U> entry = fresh(key, System.nanoTime());
+        return entry != null ? CompletableFuture.completedFuture(entry.value) : load(key);
+    }
+
+    public void invalidate(T key){
+        cache.remove(key);
+    }
+
+    // Fires due expirations; normally driven by reads and writes.
+    public void cleanUp(){
+        wheel.advance(System.nanoTime(), onExpired);
+    }
+
+    // Entries held, including expired ones the wheel has not dropped yet.
+    int size(){
+        return cache.size();
+    }
+
+    private Expirable<U> fresh(T key, long now){
+        wheel.advance(now, onExpired);
+        Expirable<U> entry = cache.value(key);
+        if(entry == null || entry.isExpired(now, expiry))
             return null;
+        entry.accessNanos = now;
+        if(expiry.refreshAfterWriteNanos > 0 && now - entry.writeNanos >= expiry.refreshAfterWriteNanos)
+            load(key);
+        return entry;
+    }
+
+    private CompletableFuture<U> load(T key){
+        CompletableFuture<U> created = new CompletableFuture<>();
+        CompletableFuture<U> existing = inFlight.putIfAbsent(key, created);
+        if(existing != null)
+            return existing;
+        try{
+            executor.execute(() -> {
+                try{
+                    U value = loader.load(key);
+                    if(value != null) put(key, value);
+                    created.complete(value);
+                } catch (Throwable t) {
+                    created.completeExceptionally(t);
+                } finally {
+                    inFlight.remove(key, created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    private void expire(T key, Expirable<U> entry, long now){
+        if(!entry.isExpired(now, expiry)){
+            // read since it was scheduled; expire-after-access pushed the deadline out
+            wheel.schedule(key, entry, entry.deadline(expiry));
+            return;
+        }
+        // no-op if the entry was already evicted or replaced by a newer write
+        cache.remove(key, entry);
     }
+}
+
+interface Codec<T>{
+    byte[] encode(T value);
+    T decode(byte[] bytes);
+}
 
+class Codecs{
+    static final Codec<String> STRING = new Codec<>(){
+        public byte[] encode(String value){ return value.getBytes(StandardCharsets.UTF_8); }
+        public String decode(byte[] bytes){ return new String(bytes, StandardCharsets.UTF_8); }
+    };
+    static final Codec<Long> LONG = new Codec<>(){
+        public byte[] encode(Long value){ return ByteBuffer.allocate(8).putLong(value).array(); }
+        public Long decode(byte[] bytes){ return ByteBuffer.wrap(bytes).getLong(); }
+    };
+    static final Codec<byte[]> BYTES = new Codec<>(){
+        public byte[] encode(byte[] value){ return value; }
+        public byte[] decode(byte[] bytes){ return bytes; }
+    };
 }
+
+// Write-behind persistence for an LRUCache. As a CacheListener it queues put/remove events and a
+// single writer thread appends them in batches to a memory-mapped journal. checkpoint() writes a
+// compact snapshot in recency order and starts a new journal generation; restore() loads the
+// newest complete snapshot and replays every journal from its generation onwards.
+//
+// Files in dir: snapshot-<gen>.bin (written to a temp file, then atomically moved into place)
+// and journal-<gen>.log. Journal record: [type][keyLen][key]([valueLen][value] for puts). The type
+// byte is written last, so a record torn by a crash reads as the end of the journal.
+class CacheJournal<T, U> implements CacheListener<T, U>, Closeable{
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte ROTATE = 3;
+    private static final byte CLOSE = 4;
+    private static final int SNAPSHOT_MAGIC = 0x4C525553;
+    private static final int BATCH_SIZE = 4096;
+    private static final int MAP_CHUNK = 64 << 20;
+
+    private static class Event<T, U>{
+        final byte type;
+        final T key;
+        final U value;
+        final long generation;
+        // ROTATE only: counted down once the writer has switched to the new journal
+        final CountDownLatch rotated;
+
+        Event(byte type, T key, U value, long generation){
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.generation = generation;
+            this.rotated = type == ROTATE ? new CountDownLatch(1) : null;
+        }
+    }
+
+    private final Path dir;
+    private final Codec<T> keyCodec;
+    private final Codec<U> valueCodec;
+    private final BlockingQueue<Event<T, U>> queue = new LinkedBlockingQueue<>(1 << 16);
+    private final Thread writer;
+    private long generation;
+    private volatile IOException failure;
+    private volatile boolean stopped; // the writer has returned; nothing drains the queue any more
+
+    // writer-thread state
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long mappedBase;
+
+    public CacheJournal(Path dir, Codec<T> keyCodec, Codec<U> valueCodec) throws IOException{
+        this.dir = Files.createDirectories(dir);
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        // never append to a journal that may end in a torn record; start the next generation
+        this.generation = Math.max(latest("snapshot-"), latest("journal-")) + 1;
+        openJournal(generation);
+        this.writer = new Thread(this::writeLoop, "cache-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void onPut(T key, U value){
+        enqueue(new Event<>(PUT, key, value, 0));
+    }
+
+    @Override
+    public void onRemove(T key){
+        enqueue(new Event<>(REMOVE, key, null, 0));
+    }
+
+    // Blocks when the writer falls behind, which pushes back on the cache instead of losing events,
+    // but throws instead once the writer has stopped: the caller holds the cache lock, and a full
+    // queue would never drain.
+    private void enqueue(Event<T, U> event){
+        try{
+            do{
+                if(stopped){
+                    if(failure != null) throw new UncheckedIOException("cache journal failed", failure);
+                    throw new IllegalStateException("cache journal is closed");
+                }
+            } while(!queue.offer(event, 10, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while journaling", e);
+        }
+    }
+
+    // Loads the newest snapshot and replays the journals after it. Call before setListener so the
+    // restore itself is not journaled again.
+    public void restore(LRUCache<T, U> cache) throws IOException{
+        long snapshotGeneration = latest("snapshot-");
+        if(snapshotGeneration >= 0){
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(dir.resolve("snapshot-" + snapshotGeneration + ".bin")), 1 << 16))){
+                if(in.readInt() != SNAPSHOT_MAGIC)
+                    throw new IOException("not a cache snapshot: generation " + snapshotGeneration);
+                int count = in.readInt();
+                for(int i = 0; i < count; i++){
+                    cache.put(keyCodec.decode(readBytes(in)), valueCodec.decode(readBytes(in)));
+                }
+            }
+        }
+        for(long gen = Math.max(snapshotGeneration, 0); gen < generation; gen++){
+            Path journal = dir.resolve("journal-" + gen + ".log");
+            if(Files.exists(journal)) replay(journal, cache);
+        }
+    }
+
+    private void replay(Path journal, LRUCache<T, U> cache) throws IOException{
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal), 1 << 16))){
+            while(true){
+                int type = in.read();
+                if(type != PUT && type != REMOVE)
+                    return;
+                T key = keyCodec.decode(readBytes(in));
+                if(type == PUT) cache.put(key, valueCodec.decode(readBytes(in)));
+                else cache.remove(key);
+            }
+        } catch (EOFException e) {
+            // torn tail after a crash; everything before it has been applied
+        }
+    }
+
+    // Writes a compact snapshot of the cache and rolls the journal so older files can be deleted.
+    public void checkpoint(LRUCache<T, U> cache) throws IOException{
+        List<Map.Entry<T, U>> entries;
+        long next;
+        Event<T, U> rotate;
+        // holding the cache lock makes the copy and the rotate marker one point in the event order
+        synchronized(cache){
+            entries = cache.entriesColdestFirst();
+            next = ++generation;
+            rotate = new Event<>(ROTATE, null, null, next);
+            enqueue(rotate);
+        }
+        Path tmp = dir.resolve("snapshot-" + next + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))){
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(entries.size());
+            for(Map.Entry<T, U> entry : entries){
+                writeBytes(out, keyCodec.encode(entry.getKey()));
+                writeBytes(out, valueCodec.encode(entry.getValue()));
+            }
+        }
+        Files.move(tmp, dir.resolve("snapshot-" + next + ".bin"), StandardCopyOption.ATOMIC_MOVE);
+        // until the writer reaches the marker it may still be appending to the old journal
+        awaitRotation(rotate.rotated);
+        deleteBefore(next);
+    }
+
+    // One directory listing, however many generations came before.
+    private void deleteBefore(long generation) throws IOException{
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "{snapshot,journal}-*.{bin,log}")){
+            for(Path file : files){
+                String name = file.getFileName().toString();
+                if(Long.parseLong(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.'))) < generation)
+                    Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void awaitRotation(CountDownLatch rotated) throws IOException{
+        try{
+            while(!rotated.await(100, TimeUnit.MILLISECONDS)){
+                if(stopped && rotated.getCount() > 0)
+                    throw failure != null ? failure : new IOException("cache journal closed before the rotation");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the journal to rotate", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException{
+        Event<T, U> close = new Event<>(CLOSE, null, null, 0);
+        try{
+            while(!stopped && !queue.offer(close, 10, TimeUnit.MILLISECONDS)){
+                // the writer is still draining a full queue
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(failure != null) throw failure;
+    }
+
+    private void writeLoop(){
+        List<Event<T, U>> batch = new ArrayList<>(BATCH_SIZE);
+        try{
+            while(true){
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for(Event<T, U> event : batch){
+                    if(event.type == CLOSE){
+                        closeJournal();
+                        return;
+                    }
+                    if(event.type == ROTATE){
+                        closeJournal();
+                        openJournal(event.generation);
+                        event.rotated.countDown();
+                    } else {
+                        append(event);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            // a codec threw; record it, or callers would only ever see "closed"
+            failure = new IOException("cache journal writer failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped = true;
+        }
+    }
+
+    private void append(Event<T, U> event) throws IOException{
+        byte[] key = keyCodec.encode(event.key);
+        byte[] value = event.type == PUT ? valueCodec.encode(event.value) : null;
+        int size = 1 + 4 + key.length + (value == null ? 0 : 4 + value.length);
+        if(mapped.remaining() < size + 1){
+            mappedBase += mapped.position();
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, mappedBase, Math.max(MAP_CHUNK, size + 1));
+        }
+        int start = mapped.position();
+        mapped.position(start + 1);
+        mapped.putInt(key.length).put(key);
+        if(value != null) mapped.putInt(value.length).put(value);
+        mapped.put(start, event.type);
+    }
+
+    private void openJournal(long gen) throws IOException{
+        channel = FileChannel.open(dir.resolve("journal-" + gen + ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mappedBase = channel.size();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, mappedBase, MAP_CHUNK);
+    }
+
+    private void closeJournal() throws IOException{
+        mapped.force();
+        channel.truncate(mappedBase + mapped.position());
+        channel.close();
+    }
+
+    private long latest(String prefix) throws IOException{
+        long latest = -1;
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")){
+            for(Path file : files){
+                String name = file.getFileName().toString();
+                if(!name.endsWith(".bin") && !name.endsWith(".log")) continue;
+                latest = Math.max(latest, Long.parseLong(name.substring(prefix.length(), name.lastIndexOf('.'))));
+            }
+        }
+        return latest;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException{
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException{
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
+
+// The shared tier behind a NearCache. Failures surface as UncheckedIOException.
+interface RemoteCache<T, U>{
+    U get(T key);
+    void put(T key, U value);
+    void remove(T key);
+}
+
+// Stand-in for the shared cache process, for tests and single-JVM setups.
+class InProcessRemoteCache<T, U> implements RemoteCache<T, U>{
+    private final Map<T, U> values = new ConcurrentHashMap<>();
+
+    @Override
+    public U get(T key){ return values.get(key); }
+
+    @Override
+    public void put(T key, U value){ values.put(key, value); }
+
+    @Override
+    public void remove(T key){ values.remove(key); }
+}
+
+// Serves a RemoteCache on a loopback socket, one thread per connection.
+// Request: [op][keyLen][key]([valueLen][value] for PUT). GET replies [found]([valueLen][value]).
+class CacheServer<T, U> implements Closeable{
+    static final byte GET = 1;
+    static final byte PUT = 2;
+    static final byte REMOVE = 3;
+
+    private final RemoteCache<T, U> backing;
+    private final Codec<T> keyCodec;
+    private final Codec<U> valueCodec;
+    private final ServerSocket serverSocket;
+
+    public CacheServer(RemoteCache<T, U> backing, Codec<T> keyCodec, Codec<U> valueCodec) throws IOException{
+        this.backing = backing;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "cache-server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port(){
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop(){
+        while(!serverSocket.isClosed()){
+            try{
+                Socket socket = serverSocket.accept();
+                Thread handler = new Thread(() -> serve(socket), "cache-server-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket){
+        try(socket;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))){
+            socket.setTcpNoDelay(true);
+            while(true){
+                int op = in.read();
+                if(op < 0) return;
+                T key = keyCodec.decode(readBytes(in));
+                if(op == GET){
+                    U value = backing.get(key);
+                    out.writeBoolean(value != null);
+                    if(value != null) writeBytes(out, valueCodec.encode(value));
+                } else if (op == PUT) {
+                    backing.put(key, valueCodec.decode(readBytes(in)));
+                    out.writeBoolean(true);
+                } else {
+                    backing.remove(key);
+                    out.writeBoolean(true);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException{
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException{
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public void close() throws IOException{
+        serverSocket.close();
+    }
+}
+
+// Client for CacheServer over a single connection; calls are serialized on it.
+class SocketRemoteCache<T, U> implements RemoteCache<T, U>, Closeable{
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Codec<T> keyCodec;
+    private final Codec<U> valueCodec;
+
+    public SocketRemoteCache(int port, Codec<T> keyCodec, Codec<U> valueCodec) throws IOException{
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    @Override
+    public synchronized U get(T key){
+        try{
+            send(CacheServer.GET, key, null);
+            return in.readBoolean() ? valueCodec.decode(CacheServer.readBytes(in)) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void put(T key, U value){
+        try{
+            send(CacheServer.PUT, key, value);
+            in.readBoolean();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void remove(T key){
+        try{
+            send(CacheServer.REMOVE, key, null);
+            in.readBoolean();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void send(byte op, T key, U value) throws IOException{
+        out.writeByte(op);
+        CacheServer.writeBytes(out, keyCodec.encode(key));
+        if(value != null) CacheServer.writeBytes(out, valueCodec.encode(value));
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException{
+        socket.close();
+    }
+}
+
+// Batches key invalidations and delivers them to every subscribed node on a fixed interval.
+// Repeated invalidations of a key inside one interval coalesce into one delivery, so staleness
+// is bounded by the flush interval. Lag (first publish to delivery) goes into a LatencyHistogram.
+class CoalescingInvalidationBus<T> implements Closeable{
+    private static class Invalidation{
+        // null once two different nodes have invalidated the key in the same interval
+        final String source;
+        final long publishedNanos;
+
+        Invalidation(String source, long publishedNanos){
+            this.source = source;
+            this.publishedNanos = publishedNanos;
+        }
+
+        Invalidation merge(Invalidation later){
+            return new Invalidation(Objects.equals(source, later.source) ? source : null, publishedNanos);
+        }
+    }
+
+    private static class Subscriber<T>{
+        final String nodeId;
+        final Consumer<List<T>> onBatch;
+
+        Subscriber(String nodeId, Consumer<List<T>> onBatch){
+            this.nodeId = nodeId;
+            this.onBatch = onBatch;
+        }
+    }
+
+    private final Map<T, Invalidation> pending = new ConcurrentHashMap<>();
+    private final List<Subscriber<T>> subscribers = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "invalidation-bus-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    // The executor schedules in whole microseconds, so a shorter positive interval flushes every 1us.
+    public CoalescingInvalidationBus(Duration flushInterval){
+        if(flushInterval.isNegative() || flushInterval.isZero())
+            throw new IllegalArgumentException("flushInterval must be positive: " + flushInterval);
+        long micros = Math.max(1, flushInterval.toNanos() / 1000);
+        flusher.scheduleAtFixedRate(this::flush, micros, micros, TimeUnit.MICROSECONDS);
+    }
+
+    public void subscribe(String nodeId, Consumer<List<T>> onBatch){
+        subscribers.add(new Subscriber<>(nodeId, onBatch));
+    }
+
+    public void publish(String sourceNodeId, T key){
+        published.increment();
+        pending.merge(key, new Invalidation(sourceNodeId, System.nanoTime()), Invalidation::merge);
+    }
+
+    void flush(){
+        if(pending.isEmpty())
+            return;
+        List<T> keys = new ArrayList<>();
+        List<Invalidation> invalidations = new ArrayList<>();
+        for(T key : pending.keySet()){
+            Invalidation invalidation = pending.remove(key);
+            if(invalidation == null) continue;
+            keys.add(key);
+            invalidations.add(invalidation);
+        }
+        for(Subscriber<T> subscriber : subscribers){
+            List<T> batch = new ArrayList<>(keys.size());
+            for(int i = 0; i < keys.size(); i++){
+                // the writer already updated its own local tier
+                if(!subscriber.nodeId.equals(invalidations.get(i).source)) batch.add(keys.get(i));
+            }
+            if(!batch.isEmpty()) subscriber.onBatch.accept(batch);
+        }
+        long now = System.nanoTime();
+        for(Invalidation invalidation : invalidations) lag.record(now - invalidation.publishedNanos);
+        delivered.add(keys.size());
+    }
+
+    public LatencySnapshot lag(){
+        return lag.snapshot();
+    }
+
+    // Publishes that were folded into an earlier pending invalidation of the same key.
+    public long coalesced(){
+        return published.sum() - delivered.sum() - pending.size();
+    }
+
+    @Override
+    public void close(){
+        flusher.shutdown();
+    }
+}
+
+// Two-tier cache: a local LRUCache in front of a shared RemoteCache. Writes go through to the
+// remote tier and publish an invalidation so other nodes drop their local copy.
+class NearCache<T, U> implements Cache<T, U>{
+    private final String nodeId;
+    private final LRUCache<T, U> local;
+    private final RemoteCache<T, U> remote;
+    private final CoalescingInvalidationBus<T> bus;
+    // bumped under the local cache lock by every delivered batch
+    private long invalidationEpoch;
+
+    public NearCache(String nodeId, int localCapacity, RemoteCache<T, U> remote, CoalescingInvalidationBus<T> bus){
+        this.nodeId = nodeId;
+        this.local = new LRUCache<>(localCapacity);
+        this.local.setRecordStats(true);
+        this.remote = remote;
+        this.bus = bus;
+        bus.subscribe(nodeId, this::invalidate);
+    }
+
+    @Override
+    public U value(T key){
+        U value = local.value(key);
+        if(value != null)
+            return value;
+        long epoch;
+        synchronized(local){
+            epoch = invalidationEpoch;
+        }
+        value = remote.get(key);
+        if(value != null){
+            synchronized(local){
+                // an invalidation may have overtaken this read; serve the value but do not cache it
+                if(epoch == invalidationEpoch) local.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void put(T key, U value){
+        remote.put(key, value);
+        local.put(key, value);
+        bus.publish(nodeId, key);
+    }
+
+    public void remove(T key){
+        remote.remove(key);
+        local.remove(key);
+        bus.publish(nodeId, key);
+    }
+
+    private void invalidate(List<T> keys){
+        synchronized(local){
+            invalidationEpoch++;
+            for(T key : keys) local.remove(key);
+        }
+    }
+
+    public CacheStatsSnapshot localStats(){
+        return local.stats();
+    }
+}
+
+// Hashes keys onto independent LRU segments so threads only contend when they hit the same segment.
+// Recency and eviction are per segment, so the global order is approximately LRU.
+class SegmentedLRUCache<T, U> implements Cache<T, U>{
+    private final LRUCache<T, U>[] segments;
+    private final int mask;
+
+    public SegmentedLRUCache(int capacity){
+        this(capacity, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public SegmentedLRUCache(int capacity, int segmentCount){
+        if(capacity <= 0 || segmentCount <= 0)
+            throw new IllegalArgumentException("capacity and segmentCount must be positive");
+        // power of two so the segment index is a mask, and never more segments than entries
+        int count = Integer.highestOneBit(Math.min(segmentCount, capacity));
+        @SuppressWarnings("unchecked")
+        LRUCache<T, U>[] segments = (LRUCache<T, U>[]) new LRUCache<?, ?>[count];
+        this.segments = segments;
+        for(int i = 0; i < count; i++){
+            segments[i] = new LRUCache<>(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+        mask = count - 1;
+    }
+
+    private LRUCache<T, U> segmentFor(T key){
+        int h = Objects.hashCode(key);
+        h ^= (h >>> 16);
+        return segments[h & mask];
+    }
+
+    @Override
+    public void put(T key, U value){
+        segmentFor(key).put(key, value);
+    }
+
+    @Override
+    public U value(T key){
+        return segmentFor(key).value(key);
+    }
+
+    public CacheStatsSnapshot stats(){
+        CacheStatsSnapshot total = segments[0].stats();
+        for(int i = 1; i < segments.length; i++) total = total.plus(segments[i].stats());
+        return total;
+    }
+
+    public void setRecordStats(boolean enabled){
+        for(LRUCache<T, U> segment : segments) segment.setRecordStats(enabled);
+    }
+
+    public void setRecordLatency(boolean enabled){
+        for(LRUCache<T, U> segment : segments) segment.setRecordLatency(enabled);
+    }
+}
+
+// Lossy, striped ring buffer of read accesses. Each thread hashes to a stripe; when a stripe is
+// full (or the CAS on its write counter is lost) the access is dropped instead of waiting.
+class ReadBuffer<T, U>{
+    static final int STRIPE_SIZE = 16;
+    private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+
+    private final AtomicReferenceArray<Node<T, U>>[] buffers;
+    private final AtomicLong[] writeCounts;
+    private final AtomicLong[] readCounts;
+    private final int mask;
+
+    public ReadBuffer(){
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        @SuppressWarnings("unchecked")
+        AtomicReferenceArray<Node<T, U>>[] buffers = (AtomicReferenceArray<Node<T, U>>[]) new AtomicReferenceArray<?>[stripes];
+        this.buffers = buffers;
+        writeCounts = new AtomicLong[stripes];
+        readCounts = new AtomicLong[stripes];
+        for(int i = 0; i < stripes; i++){
+            buffers[i] = new AtomicReferenceArray<>(STRIPE_SIZE);
+            writeCounts[i] = new AtomicLong();
+            readCounts[i] = new AtomicLong();
+        }
+        mask = stripes - 1;
+    }
+
+    // Returns true when the caller's stripe is full and should be drained.
+    public boolean offer(Node<T, U> node){
+        long id = Thread.currentThread().getId();
+        int i = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        AtomicLong writes = writeCounts[i];
+        long w = writes.get();
+        long size = w - readCounts[i].get();
+        if(size >= STRIPE_SIZE)
+            return true;
+        if(writes.compareAndSet(w, w + 1)){
+            buffers[i].lazySet((int) (w & STRIPE_MASK), node);
+            return size + 1 >= STRIPE_SIZE;
+        }
+        return false;
+    }
+
+    // Must only be called by one thread at a time (the holder of the owner's lock).
+    public void drainTo(Consumer<Node<T, U>> consumer){
+        for(int i = 0; i < buffers.length; i++){
+            AtomicReferenceArray<Node<T, U>> buffer = buffers[i];
+            long r = readCounts[i].get();
+            long w = writeCounts[i].get();
+            for(; r < w; r++){
+                int index = (int) (r & STRIPE_MASK);
+                Node<T, U> node = buffer.get(index);
+                // slot claimed but not yet published; pick it up on the next drain
+                if(node == null) break;
+                buffer.lazySet(index, null);
+                consumer.accept(node);
+            }
+            readCounts[i].lazySet(r);
+        }
+    }
+}
+
+// LRU cache whose reads never take the lock: a hit is recorded in a ReadBuffer and the recency
+// moves are replayed onto the DLL in batches by whichever thread wins the tryLock (or by the next
+// writer). Eviction order is approximately LRU since dropped accesses are never replayed.
+class ReadBufferedLRUCache<T, U> implements Cache<T, U>{
+    private final int capacity;
+    private final Map<T, Node<T, U>> values = new ConcurrentHashMap<>();
+    private final DLL<T, U> dll = new DLL<>();
+    private final ReadBuffer<T, U> readBuffer = new ReadBuffer<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Consumer<Node<T, U>> replay = this::moveToFront;
+
+    public ReadBufferedLRUCache(int capacity){
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void put(T key, U value){
+        // a fresh node per write so lock-free readers always see a fully built node
+        Node<T, U> newNode = new Node<>(key, value);
+        evictionLock.lock();
+        try{
+            readBuffer.drainTo(replay);
+            Node<T, U> oldNode = values.put(key, newNode);
+            if(oldNode != null){
+                dll.unlink(oldNode);
+            } else if (values.size() > capacity) {
+                Node<T, U> eldest = dll.tail.prev;
+                values.remove(eldest.key);
+                dll.unlink(eldest);
+            }
+            dll.addFirst(newNode);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public U value(T key){
+        Node<T, U> node = values.get(key);
+        if(node == null)
+            return null;
+        if(readBuffer.offer(node) && evictionLock.tryLock()){
+            try{
+                readBuffer.drainTo(replay);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    private void moveToFront(Node<T, U> node){
+        // skip nodes that were evicted or replaced after the read was buffered
+        if(node.prev == null)
+            return;
+        dll.unlink(node);
+        dll.addFirst(node);
+    }
+}
+
+// Rough retained-size estimate for common value types, assuming a 64-bit JVM with compressed
+// oops (12 byte headers, 4 byte references, 8 byte alignment). Strings are charged 2 bytes per
+// char so the estimate stays an upper bound whether or not they are Latin-1 compacted.
+// Unknown types are charged their shallow field size only.
+class ObjectSizeEstimator{
+    // LRUCache Node plus the HashMap.Node and table slot that index it
+    static final int ENTRY_OVERHEAD = 40 + 32 + 4;
+
+    public static <T, U> Weigher<T, U> weigher(){
+        return (key, value) -> (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD + estimate(key) + estimate(value));
+    }
+
+    public static long estimate(Object o){
+        if(o == null) return 0;
+        if(o instanceof byte[]) return array(((byte[]) o).length, 1);
+        if(o instanceof char[]) return array(((char[]) o).length, 2);
+        if(o instanceof short[]) return array(((short[]) o).length, 2);
+        if(o instanceof int[]) return array(((int[]) o).length, 4);
+        if(o instanceof float[]) return array(((float[]) o).length, 4);
+        if(o instanceof long[]) return array(((long[]) o).length, 8);
+        if(o instanceof double[]) return array(((double[]) o).length, 8);
+        if(o instanceof String) return 24 + array(((String) o).length(), 2);
+        if(o instanceof Long || o instanceof Double) return 24;
+        if(o instanceof Number || o instanceof Boolean || o instanceof Character) return 16;
+        if(o instanceof Object[]){
+            Object[] array = (Object[]) o;
+            long size = array(array.length, 4);
+            for(Object element : array) size += estimate(element);
+            return size;
+        }
+        if(o instanceof Collection){
+            long size = 48;
+            for(Object element : (Collection<?>) o) size += 32 + estimate(element);
+            return size;
+        }
+        if(o instanceof Map){
+            long size = 64;
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet())
+                size += 36 + estimate(entry.getKey()) + estimate(entry.getValue());
+            return size;
+        }
+        return shallow(o.getClass());
+    }
+
+    private static long array(int length, int elementBytes){
+        return align(16 + (long) length * elementBytes);
+    }
+
+    private static long shallow(Class<?> type){
+        long size = 12;
+        for(Class<?> c = type; c != null; c = c.getSuperclass()){
+            for(Field field : c.getDeclaredFields()){
+                if(Modifier.isStatic(field.getModifiers())) continue;
+                Class<?> t = field.getType();
+                size += (t == long.class || t == double.class) ? 8
+                        : (t == int.class || t == float.class || !t.isPrimitive()) ? 4
+                        : (t == short.class || t == char.class) ? 2 : 1;
+            }
+        }
+        return align(size);
+    }
+
+    private static long align(long size){
+        return (size + 7) & ~7L;
+    }
+}
+
+// Schedules TimerWheel deadlines at the start, middle and end of a tick, and checks each one fires
+// on the first advance after its tick has passed, not a full turn of the wheel later.
+// Run: java -cp <out> TargetedPractice.LRUCache.TimerWheelCheck
+class TimerWheelCheck {
+    public static void main(String[] args){
+        long tick = 100;
+        int slots = 8;
+        for(long offset : new long[]{0, tick / 2, tick - 1}){
+            TimerWheel<String, String> wheel = new TimerWheel<>(tick, slots, 0);
+            long deadline = 3 * tick + offset;
+            wheel.schedule("key", "value", deadline);
+            List<Long> fired = new ArrayList<>();
+            for(long now = 0; now <= 2 * slots * tick; now += tick / 4){
+                wheel.advance(now, (key, value, at) -> fired.add(at));
+            }
+            if(fired.size() != 1)
+                throw new IllegalStateException("deadline " + deadline + " fired " + fired.size() + " times");
+            long at = fired.get(0);
+            if(at < deadline || at > deadline + tick + tick / 4)
+                throw new IllegalStateException("deadline " + deadline + " fired at " + at);
+            System.out.printf("deadline %d fired at %d%n", deadline, at);
+        }
+    }
+}
+
+// Checks LoadingLRUCache against a counting loader: N concurrent misses on a key share one load
+// (and one future), entries are dropped by the wheel once expire-after-write or expire-after-access
+// has passed, reads keep an expire-after-access entry alive, and a read past refreshAfterWrite
+// returns the old value while the reload runs. Uses the real clock, so it takes about two seconds.
+// Run: java -cp <out> TargetedPractice.LRUCache.LoadingCacheCheck [threads]
+class LoadingCacheCheck {
+    private static final long TICK_MILLIS = 100;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        Executor loads = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "loading-cache-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sharedMiss(threads, loads);
+        expireAfterWrite(loads);
+        expireAfterAccess(loads);
+        refreshAfterWrite(loads);
+    }
+
+    static void sharedMiss(int threads, Executor loads) throws InterruptedException {
+        AtomicLong count = new AtomicLong();
+        CountDownLatch gate = new CountDownLatch(1);
+        LoadingLRUCache<String, String> cache = new LoadingLRUCache<>(16, key -> {
+            count.incrementAndGet();
+            gate.await();
+            return key + "-value";
+        }, new ExpiryConfig(null, null, null), loads);
+
+        List<CompletableFuture<String>> futures = new CopyOnWriteArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] callers = new Thread[threads];
+        for(int t = 0; t < threads; t++){
+            callers[t] = new Thread(() -> {
+                try { start.await(); } catch (InterruptedException e) { return; }
+                futures.add(cache.getAsync("key"));
+            });
+            callers[t].start();
+        }
+        start.countDown();
+        for(Thread caller : callers) caller.join();
+        gate.countDown();
+        for(CompletableFuture<String> future : futures){
+            if(future != futures.get(0))
+                throw new IllegalStateException("concurrent misses got different futures");
+            if(!future.join().equals("key-value"))
+                throw new IllegalStateException("loaded " + future.join());
+        }
+        if(count.get() != 1)
+            throw new IllegalStateException(threads + " concurrent misses ran " + count.get() + " loads");
+        System.out.printf("%d concurrent misses: 1 load, 1 shared future%n", threads);
+    }
+
+    static void expireAfterWrite(Executor loads) throws InterruptedException {
+        LoadingLRUCache<String, String> cache = new LoadingLRUCache<>(16, key -> key,
+                new ExpiryConfig(Duration.ofMillis(200), null, null), loads);
+        cache.put("key", "value");
+        if(cache.value("key") == null)
+            throw new IllegalStateException("entry gone before its ttl");
+        // past the deadline plus the tick it lands in and the one after
+        Thread.sleep(200 + 2 * TICK_MILLIS + 50);
+        cache.cleanUp();
+        if(cache.size() != 0)
+            throw new IllegalStateException("expired entry still held after the wheel advanced");
+        System.out.println("expire-after-write: dropped by the wheel");
+    }
+
+    static void expireAfterAccess(Executor loads) throws InterruptedException {
+        LoadingLRUCache<String, String> cache = new LoadingLRUCache<>(16, key -> key,
+                new ExpiryConfig(null, Duration.ofMillis(300), null), loads);
+        cache.put("key", "value");
+        for(int i = 0; i < 4; i++){
+            Thread.sleep(150);
+            if(cache.value("key") == null)
+                throw new IllegalStateException("entry read every 150ms expired after " + (i + 1) * 150 + "ms");
+        }
+        Thread.sleep(300 + 2 * TICK_MILLIS + 50);
+        cache.cleanUp();
+        if(cache.size() != 0)
+            throw new IllegalStateException("idle entry still held after the wheel advanced");
+        System.out.println("expire-after-access: kept alive by reads, dropped once idle");
+    }
+
+    static void refreshAfterWrite(Executor loads) throws InterruptedException {
+        AtomicLong count = new AtomicLong();
+        CountDownLatch reloading = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        LoadingLRUCache<String, String> cache = new LoadingLRUCache<>(16, key -> {
+            long n = count.incrementAndGet();
+            if(n > 1){
+                reloading.countDown();
+                gate.await();
+            }
+            return "v" + n;
+        }, new ExpiryConfig(null, null, Duration.ofMillis(100)), loads);
+
+        if(!cache.get("key").equals("v1"))
+            throw new IllegalStateException("first load returned " + cache.value("key"));
+        Thread.sleep(150);
+        String stale = cache.value("key");
+        if(!reloading.await(1, TimeUnit.SECONDS))
+            throw new IllegalStateException("read past refreshAfterWrite started no reload");
+        if(!"v1".equals(stale) || !"v1".equals(cache.value("key")))
+            throw new IllegalStateException("read during the reload did not return the old value");
+        gate.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while(!"v2".equals(cache.value("key"))){
+            if(System.nanoTime() > deadline)
+                throw new IllegalStateException("reloaded value never replaced the old one");
+            Thread.sleep(5);
+        }
+        if(count.get() != 2)
+            throw new IllegalStateException("refresh ran " + (count.get() - 1) + " reloads");
+        System.out.println("refresh-after-write: old value served during the reload, then replaced");
+    }
+}
+
+// Mixed-size churn (100 B to 2 MB values) against a weight-bounded LRUCache. Checks the weight bound
+// after every put and reports the heap retained by the cache once churn is done.
+// Run: java -cp <out> TargetedPractice.LRUCache.WeightedChurnCheck [maxMB] [operations]
+class WeightedChurnCheck {
+    public static void main(String[] args){
+        long maxBytes = (args.length > 0 ? Long.parseLong(args[0]) : 64) << 20;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+
+        long heapBefore = OffHeapFootprintBenchmark.usedHeapAfterGc();
+        LRUCache<Integer, byte[]> cache = new LRUCache<>(maxBytes, ObjectSizeEstimator.weigher());
+        Random random = new Random(11);
+        long peak = 0;
+        for(int i = 0; i < operations; i++){
+            // log-uniform between 100 B and 2 MB so small and huge values both churn
+            int size = (int) Math.exp(Math.log(100) + random.nextDouble() * (Math.log(2 << 20) - Math.log(100)));
+            cache.put(random.nextInt(operations / 4), new byte[size]);
+            peak = Math.max(peak, cache.weightedSize());
+            if(cache.weightedSize() > maxBytes)
+                throw new IllegalStateException("weight bound exceeded after op " + i + ": " + cache.weightedSize());
+        }
+        long retained = OffHeapFootprintBenchmark.usedHeapAfterGc() - heapBefore;
+        System.out.printf("max %d MB, peak weight %.1f MB, entries %d, retained heap %.1f MB%n",
+                maxBytes >> 20, peak / 1048576.0, cache.size(), retained / 1048576.0);
+        if(retained > maxBytes * 1.1)
+            throw new IllegalStateException("retained heap " + retained + " exceeds bound " + maxBytes);
+    }
+}
+
+// Compares the single-lock, segmented and read-buffered caches on a 90/10 read/write mix.
+// Run: java -cp <out> TargetedPractice.LRUCache.CacheThroughputBenchmark [capacity] [millisPerRun]
+class CacheThroughputBenchmark {
+    static final int[] THREAD_COUNTS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws InterruptedException {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2_000;
+
+        System.out.printf("%-8s %18s %18s %18s%n", "threads", "LRUCache ops/s", "Segmented ops/s", "ReadBuffered ops/s");
+        for(int threads : THREAD_COUNTS){
+            double single = run(new LRUCache<>(capacity), capacity, threads, millis);
+            double segmented = run(new SegmentedLRUCache<>(capacity), capacity, threads, millis);
+            double readBuffered = run(new ReadBufferedLRUCache<>(capacity), capacity, threads, millis);
+            System.out.printf("%-8d %18.0f %18.0f %18.0f%n", threads, single, segmented, readBuffered);
+        }
+    }
+
+    static double run(Cache<Integer, Integer> cache, int capacity, int threads, long millis) throws InterruptedException {
+        for(int i = 0; i < capacity; i++) cache.put(i, i);
+
+        int keySpace = capacity * 2;
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t++){
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try { start.await(); } catch (InterruptedException e) { return; }
+                long done = 0;
+                while(System.nanoTime() < deadline[0]){
+                    // batch of 64 between clock reads so nanoTime does not dominate
+                    for(int i = 0; i < 64; i++){
+                        int key = random.nextInt(keySpace);
+                        if(random.nextInt(10) == 0) cache.put(key, key);
+                        else cache.value(key);
+                    }
+                    done += 64;
+                }
+                ops.add(done);
+            });
+            workers[t].start();
+        }
+        deadline[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        start.countDown();
+        for(Thread worker : workers) worker.join();
+        return ops.sum() * 1000.0 / millis;
+    }
+}
+
+// YCSB-style Zipfian generator over [0, items); rank 0 is the hottest key.
+class ZipfianGenerator{
+    private final int items;
+    private final double theta;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+
+    public ZipfianGenerator(int items, double theta){
+        this.items = items;
+        this.theta = theta;
+        this.zetan = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+    }
+
+    private static double zeta(int n, double theta){
+        double sum = 0;
+        for(int i = 1; i <= n; i++) sum += 1 / Math.pow(i, theta);
+        return sum;
+    }
+
+    public int next(Random random){
+        double u = random.nextDouble();
+        double uz = u * zetan;
+        if(uz < 1.0) return 0;
+        if(uz < 1.0 + Math.pow(0.5, theta)) return 1;
+        return Math.min(items - 1, (int) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+}
+
+// Replays synthetic traces through LRUCache with each policy and prints the hit ratio.
+// Run: java -cp <out> TargetedPractice.LRUCache.PolicyTraceReplay [capacity] [requests]
+class PolicyTraceReplay {
+    public static void main(String[] args){
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        Map<String, int[]> traces = new LinkedHashMap<>();
+        traces.put("zipfian(0.99)", zipfian(capacity * 100, 0.99, requests, 42));
+        traces.put("zipfian(0.80)", zipfian(capacity * 100, 0.80, requests, 42));
+        traces.put("zipfian+scans", zipfianWithScans(capacity * 100, requests, capacity * 5, 42));
+
+        System.out.printf("%-16s %10s %12s%n", "trace", "LRU", "W-TinyLFU");
+        for(Map.Entry<String, int[]> trace : traces.entrySet()){
+            double lru = hitRatio(new LRUCache<>(capacity), trace.getValue());
+            double tinyLfu = hitRatio(new LRUCache<>(capacity, new WTinyLfuPolicy<>(capacity)), trace.getValue());
+            System.out.printf("%-16s %9.2f%% %11.2f%%%n", trace.getKey(), lru * 100, tinyLfu * 100);
+        }
+    }
+
+    static double hitRatio(Cache<Integer, Integer> cache, int[] trace){
+        long hits = 0;
+        for(int key : trace){
+            if(cache.value(key) != null){
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    static int[] zipfian(int items, double theta, int requests, long seed){
+        ZipfianGenerator generator = new ZipfianGenerator(items, theta);
+        Random random = new Random(seed);
+        int[] trace = new int[requests];
+        for(int i = 0; i < requests; i++) trace[i] = generator.next(random);
+        return trace;
+    }
+
+    // Zipfian traffic interrupted every 50k requests by a sequential scan over never-seen keys.
+    static int[] zipfianWithScans(int items, int requests, int scanLength, long seed){
+        ZipfianGenerator generator = new ZipfianGenerator(items, 0.99);
+        Random random = new Random(seed);
+        int[] trace = new int[requests];
+        int nextScanKey = items;
+        for(int i = 0; i < requests; ){
+            if(i % 50_000 == 0 && i > 0){
+                for(int j = 0; j < scanLength && i < requests; j++) trace[i++] = nextScanKey++;
+            }
+            if(i < requests) trace[i++] = generator.next(random);
+        }
+        return trace;
+    }
+}
+
+// long -> fixed-size byte[] LRU cache kept entirely in direct memory. Entries live in one slab
+// (key, prev, next, payload) addressed by int index, and an open-addressing table with linear
+// probing maps keys to entry indexes. No heap object is allocated per entry.
+class OffHeapLongLRUCache{
+    private static final int NIL = -1;
+    private static final int KEY = 0;
+    private static final int PREV = 8;
+    private static final int NEXT = 12;
+    private static final int PAYLOAD = 16;
+
+    private final int capacity;
+    private final int valueSize;
+    private final int entryBytes;
+    private final ByteBuffer entries;
+    // slot -> entry index + 1, 0 marks an empty slot
+    private final ByteBuffer table;
+    private final int tableMask;
+    private int size;
+    private int head = NIL;
+    private int tail = NIL;
+
+    public OffHeapLongLRUCache(int capacity, int valueSize){
+        if(capacity <= 0 || valueSize <= 0)
+            throw new IllegalArgumentException("capacity and valueSize must be positive");
+        long slabBytes = (long) capacity * (PAYLOAD + valueSize);
+        long tableSlots = Long.highestOneBit((long) capacity * 4 - 1);
+        if(slabBytes > Integer.MAX_VALUE || tableSlots * 4 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("cache does not fit in a single direct buffer: " + slabBytes + " bytes");
+        this.capacity = capacity;
+        this.valueSize = valueSize;
+        this.entryBytes = PAYLOAD + valueSize;
+        this.entries = ByteBuffer.allocateDirect((int) slabBytes);
+        this.table = ByteBuffer.allocateDirect((int) tableSlots * 4);
+        this.tableMask = (int) tableSlots - 1;
+    }
+
+    public synchronized void put(long key, byte[] value){
+        if(value.length != valueSize)
+            throw new IllegalArgumentException("value must be exactly " + valueSize + " bytes");
+        int slot = findSlot(key);
+        int entry = table.getInt(slot * 4) - 1;
+        if(entry != NIL){
+            unlink(entry);
+        } else {
+            if(size == capacity){
+                entry = tail;
+                unlink(entry);
+                removeSlot(findSlot(keyOf(entry)));
+                // the table may have shifted, so probe again for the insert position
+                slot = findSlot(key);
+            } else {
+                entry = size++;
+            }
+            entries.putLong(offset(entry) + KEY, key);
+            table.putInt(slot * 4, entry + 1);
+        }
+        entries.put(offset(entry) + PAYLOAD, value);
+        addFirst(entry);
+    }
+
+    // Copies the payload into the caller's buffer so a hit allocates nothing.
+    public synchronized boolean value(long key, byte[] into){
+        int entry = table.getInt(findSlot(key) * 4) - 1;
+        if(entry == NIL)
+            return false;
+        unlink(entry);
+        addFirst(entry);
+        entries.get(offset(entry) + PAYLOAD, into, 0, valueSize);
+        return true;
+    }
+
+    public byte[] value(long key){
+        byte[] into = new byte[valueSize];
+        return value(key, into) ? into : null;
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    public long offHeapBytes(){
+        return (long) entries.capacity() + table.capacity();
+    }
+
+    private int offset(int entry){
+        return entry * entryBytes;
+    }
+
+    private long keyOf(int entry){
+        return entries.getLong(offset(entry) + KEY);
+    }
+
+    private static int hash(long key){
+        key ^= (key >>> 33);
+        key *= 0xff51afd7ed558ccdL;
+        key ^= (key >>> 33);
+        return (int) key;
+    }
+
+    // Slot holding the key, or the empty slot where it would be inserted.
+    private int findSlot(long key){
+        int slot = hash(key) & tableMask;
+        while(true){
+            int entry = table.getInt(slot * 4) - 1;
+            if(entry == NIL || keyOf(entry) == key)
+                return slot;
+            slot = (slot + 1) & tableMask;
+        }
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones.
+    private void removeSlot(int hole){
+        int slot = hole;
+        while(true){
+            slot = (slot + 1) & tableMask;
+            int stored = table.getInt(slot * 4);
+            if(stored == 0)
+                break;
+            int home = hash(keyOf(stored - 1)) & tableMask;
+            boolean stays = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+            if(stays)
+                continue;
+            table.putInt(hole * 4, stored);
+            hole = slot;
+        }
+        table.putInt(hole * 4, 0);
+    }
+
+    private void addFirst(int entry){
+        entries.putInt(offset(entry) + PREV, NIL);
+        entries.putInt(offset(entry) + NEXT, head);
+        if(head != NIL) entries.putInt(offset(head) + PREV, entry);
+        head = entry;
+        if(tail == NIL) tail = entry;
+    }
+
+    private void unlink(int entry){
+        int prev = entries.getInt(offset(entry) + PREV);
+        int next = entries.getInt(offset(entry) + NEXT);
+        if(prev != NIL) entries.putInt(offset(prev) + NEXT, next); else head = next;
+        if(next != NIL) entries.putInt(offset(next) + PREV, prev); else tail = prev;
+    }
+}
+
+// Heap footprint and GC cost of LRUCache<Long, byte[]> versus OffHeapLongLRUCache under the same
+// fill + churn workload. Run each variant in its own JVM for clean numbers, e.g.
+// java -Xmx4g -cp <out> TargetedPractice.LRUCache.OffHeapFootprintBenchmark offheap 10000000 64
+class OffHeapFootprintBenchmark {
+    public static void main(String[] args){
+        String variant = args.length > 0 ? args[0] : "both";
+        int entries = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        System.out.printf("%-8s %12s %14s %14s %10s %12s%n",
+                "variant", "entries", "heap MB", "direct MB", "gc count", "gc time ms");
+        if(!variant.equals("offheap")) {
+            LRUCache<Long, byte[]> cache = new LRUCache<>(entries);
+            run("onheap", entries, valueSize, (key, value) -> cache.put(key, value.clone()), key -> cache.value(key));
+        }
+        if(!variant.equals("onheap")) {
+            OffHeapLongLRUCache cache = new OffHeapLongLRUCache(entries, valueSize);
+            byte[] into = new byte[valueSize];
+            run("offheap", entries, valueSize, cache::put, key -> cache.value(key, into));
+        }
+    }
+
+    interface Writer { void put(long key, byte[] value); }
+    interface Reader { void read(long key); }
+
+    static void run(String name, int entries, int valueSize, Writer writer, Reader reader){
+        long heapBefore = usedHeapAfterGc();
+        long[] gcBefore = gcCountAndTime();
+
+        byte[] payload = new byte[valueSize];
+        for(long key = 0; key < entries; key++) writer.put(key, payload);
+        Random random = new Random(7);
+        for(int i = 0; i < entries * 2; i++){
+            long key = random.nextInt(entries * 2);
+            if(random.nextInt(4) == 0) writer.put(key, payload);
+            else reader.read(key);
+        }
+
+        long[] gcAfter = gcCountAndTime();
+        long heap = usedHeapAfterGc() - heapBefore;
+        long direct = directBytes();
+        System.out.printf("%-8s %12d %14.1f %14.1f %10d %12d%n", name, entries,
+                heap / 1048576.0, direct / 1048576.0, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+    }
+
+    static long usedHeapAfterGc(){
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    static long directBytes(){
+        for(BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)){
+            if(pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+
+    static long[] gcCountAndTime(){
+        long count = 0, time = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{count, time};
+    }
+}
+
+// Fills a journaled cache, checkpoints, journals some more churn, then times a cold restore.
+// Run: java -cp <out> TargetedPractice.LRUCache.JournalRestoreBenchmark [entries] [valueSize]
+class JournalRestoreBenchmark {
+    public static void main(String[] args) throws IOException{
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        Path dir = Files.createTempDirectory("lru-journal");
+
+        LRUCache<Long, byte[]> cache = new LRUCache<>(entries);
+        try(CacheJournal<Long, byte[]> journal = new CacheJournal<>(dir, Codecs.LONG, Codecs.BYTES)){
+            cache.setListener(journal);
+            long start = System.nanoTime();
+            for(long key = 0; key < entries; key++) cache.put(key, new byte[valueSize]);
+            System.out.printf("journaled %d puts in %d ms%n", entries, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            start = System.nanoTime();
+            journal.checkpoint(cache);
+            System.out.printf("checkpoint in %d ms%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            Random random = new Random(3);
+            for(int i = 0; i < entries / 10; i++) cache.put((long) random.nextInt(entries * 2), new byte[valueSize]);
+        }
+
+        LRUCache<Long, byte[]> restored = new LRUCache<>(entries);
+        try(CacheJournal<Long, byte[]> journal = new CacheJournal<>(dir, Codecs.LONG, Codecs.BYTES)){
+            long start = System.nanoTime();
+            journal.restore(restored);
+            System.out.printf("restored %d entries in %d ms (same recency order: %b)%n", restored.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), sameKeyOrder(cache, restored));
+        }
+    }
+
+    static boolean sameKeyOrder(LRUCache<Long, byte[]> a, LRUCache<Long, byte[]> b){
+        List<Map.Entry<Long, byte[]>> left = a.entriesColdestFirst();
+        List<Map.Entry<Long, byte[]>> right = b.entriesColdestFirst();
+        if(left.size() != right.size()) return false;
+        for(int i = 0; i < left.size(); i++){
+            if(!left.get(i).getKey().equals(right.get(i).getKey())) return false;
+        }
+        return true;
+    }
+}
+
+// Two near-cache nodes over a shared tier: measures local-hit latency and invalidation lag.
+// Run: java -cp <out> TargetedPractice.LRUCache.NearCacheDemo [socket|inprocess] [flushMillis]
+class NearCacheDemo {
+    public static void main(String[] args) throws Exception{
+        boolean socket = args.length == 0 || args[0].equals("socket");
+        long flushMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+        InProcessRemoteCache<String, String> shared = new InProcessRemoteCache<>();
+        try(CacheServer<String, String> server = new CacheServer<>(shared, Codecs.STRING, Codecs.STRING);
+            CoalescingInvalidationBus<String> bus = new CoalescingInvalidationBus<>(Duration.ofMillis(flushMillis))){
+            RemoteCache<String, String> remoteA = socket ? new SocketRemoteCache<>(server.port(), Codecs.STRING, Codecs.STRING) : shared;
+            RemoteCache<String, String> remoteB = socket ? new SocketRemoteCache<>(server.port(), Codecs.STRING, Codecs.STRING) : shared;
+            NearCache<String, String> nodeA = new NearCache<>("node-a", 10_000, remoteA, bus);
+            NearCache<String, String> nodeB = new NearCache<>("node-b", 10_000, remoteB, bus);
+
+            for(int i = 0; i < 1_000; i++) nodeA.put("session-" + i, "v1");
+            for(int i = 0; i < 1_000; i++) nodeB.value("session-" + i);
+
+            LatencyHistogram localHits = new LatencyHistogram();
+            for(int round = 0; round < 100; round++){
+                for(int i = 0; i < 1_000; i++){
+                    long start = System.nanoTime();
+                    nodeB.value("session-" + i);
+                    localHits.record(System.nanoTime() - start);
+                }
+            }
+
+            nodeA.put("session-7", "v2");
+            long start = System.nanoTime();
+            while(!"v2".equals(nodeB.value("session-7"))) Thread.onSpinWait();
+            System.out.printf("node-b saw the update after %.2f ms%n", (System.nanoTime() - start) / 1e6);
+            System.out.println("local hit latency [" + localHits.snapshot() + "]");
+            System.out.println("invalidation lag  [" + bus.lag() + "], coalesced " + bus.coalesced());
+            System.out.println("node-b local tier " + nodeB.localStats());
+        }
+    }
+}
+
 public class Solution {
     public static void main(String[] args) {
         // Cache capacity of 2 for testing eviction
         LRUCache<String, String> sessionCache = new LRUCache<>(2);
+        sessionCache.setRecordStats(true);
+        sessionCache.setRecordLatency(true);
 
         // Scenario: Multiple threads (Elevators) accessing the same cache
         Runnable task1 = () -> {
@@ -123,5 +2368,6 @@ public class Solution {
         System.out.println("User_A: " + sessionCache.value("User_A")); // Likely null (evicted)
         System.out.println("User_B: " + sessionCache.value("User_B")); // Should be present
         System.out.println("User_C: " + sessionCache.value("User_C")); // Should be present
+        System.out.println("Stats: " + sessionCache.stats());
     }
 }
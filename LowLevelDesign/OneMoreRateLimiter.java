@@ -3,19 +3,37 @@ package LowLevelDesign.RateLimiter_Atharv.java;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 //enums
 enum UserTier{
     FREE, PREMIUM
 }
 enum RateLimitType{
-    FIXED_WINDOW, TOKEN_BUCKET, SLIDING_WINDOW
+    FIXED_WINDOW, TOKEN_BUCKET, SLIDING_WINDOW, LOCK_FREE_TOKEN_BUCKET, SLIDING_WINDOW_COUNTER, GCRA
 }
 @AllArgsConstructor
 class User{
@@ -29,19 +47,186 @@ class RateLimitConfig {
     private final int windowInSeconds;
 }
 
+// Where limiters read the time. SYSTEM reads the OS clocks on every call; CoarseClock hands out a
+// value refreshed by a background tick; ManualClock only moves when told to, for tests and
+// simulations. micros() only needs to be consistent with itself, not with millis().
+interface Clock {
+    long millis();
+
+    default long micros() {
+        return millis() * 1000;
+    }
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long micros() {
+            return System.nanoTime() / 1000;
+        }
+    };
+}
+
+// Reads System.currentTimeMillis() once per tick on a daemon thread, so a decision reads one
+// volatile field instead of the OS clock. Values are stale by up to one tick.
+class CoarseClock implements Clock, AutoCloseable {
+    private volatile long now = System.currentTimeMillis();
+    private volatile boolean running = true;
+    private final Thread ticker;
+
+    public CoarseClock(long tickMillis) {
+        ticker = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(tickMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                now = System.currentTimeMillis();
+            }
+        }, "coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    @Override
+    public long millis() {
+        return now;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        ticker.interrupt();
+    }
+}
+
+// Keeps microseconds, so simulations can step below a millisecond.
+class ManualClock implements Clock {
+    private final AtomicLong nowMicros;
+
+    public ManualClock(long startMillis) {
+        this.nowMicros = new AtomicLong(startMillis * 1000);
+    }
+
+    @Override
+    public long millis() {
+        return nowMicros.get() / 1000;
+    }
+
+    @Override
+    public long micros() {
+        return nowMicros.get();
+    }
+
+    public void set(long millis) {
+        nowMicros.set(millis * 1000);
+    }
+
+    public void setMicros(long micros) {
+        nowMicros.set(micros);
+    }
+
+    public void advance(long millis) {
+        nowMicros.addAndGet(millis * 1000);
+    }
+}
+
 @AllArgsConstructor
 abstract class RateLimiter {
     protected final RateLimitConfig config;
     protected final RateLimitType type;
+    protected final Clock clock;
 
     public abstract boolean allowRequest(String userId);
+
+    // 0 when the request is admitted; otherwise nothing is taken and the result is how many
+    // microseconds to wait before retrying. This default only knows that a full window is always
+    // enough; limiters that can tell exactly (GCRA) override it.
+    public long acquire(String userId) {
+        return allowRequest(userId) ? 0 : TimeUnit.SECONDS.toMicros(config.getWindowInSeconds());
+    }
+
+    // Decides a batch; bit i of result is set when userIds[i] may take permits[i] (1 each when
+    // permits is null). Every limiter the factory builds overrides it to touch each key once per
+    // batch; this fallback, for other subclasses, decides one request at a time and only grants
+    // single permits.
+    public void allowAll(String[] userIds, int[] permits, BitSet result) {
+        KeyGroups.checkPermits(permits, userIds.length);
+        for (int i = 0; i < userIds.length; i++) {
+            if (KeyGroups.permits(permits, i) != 1)
+                throw new IllegalArgumentException(type + " grants one permit per request");
+        }
+        for (int i = 0; i < userIds.length; i++) {
+            if (allowRequest(userIds[i])) result.set(i);
+            else result.clear(i);
+        }
+    }
+}
+
+// Batch positions grouped by key without per-position allocation: distinct keys in first-seen
+// order, the first position of each, and a chain of next positions with the same key.
+class KeyGroups {
+    final String[] keys;
+    final int[] first;
+    final int[] next;
+    final int size;
+
+    // Rejects bad permit counts before anything is decided, so a bad batch changes no state.
+    KeyGroups(String[] batch, int[] permits) {
+        checkPermits(permits, batch.length);
+        Map<String, Integer> groupOf = new HashMap<>();
+        int[] last = new int[batch.length];
+        keys = new String[batch.length];
+        first = new int[batch.length];
+        next = new int[batch.length];
+        int groups = 0;
+        for (int i = 0; i < batch.length; i++) {
+            next[i] = -1;
+            Integer group = groupOf.putIfAbsent(batch[i], groups);
+            if (group == null) {
+                keys[groups] = batch[i];
+                first[groups] = i;
+                last[groups] = i;
+                groups++;
+            } else {
+                next[last[group]] = i;
+                last[group] = i;
+            }
+        }
+        size = groups;
+    }
+
+    static int permits(int[] permits, int position) {
+        if (permits == null) return 1;
+        if (permits[position] <= 0)
+            throw new IllegalArgumentException("permits[" + position + "] must be positive: " + permits[position]);
+        return permits[position];
+    }
+
+    static void checkPermits(int[] permits, int batchSize) {
+        if (permits == null) return;
+        if (permits.length < batchSize)
+            throw new IllegalArgumentException("permits has " + permits.length + " entries for a batch of " + batchSize);
+        for (int i = 0; i < batchSize; i++) permits(permits, i);
+    }
 }
 class RateLimiterFactory {
     public static RateLimiter createRateLimiter(RateLimitType algo, RateLimitConfig config) {
+        return createRateLimiter(algo, config, Clock.SYSTEM);
+    }
+
+    public static RateLimiter createRateLimiter(RateLimitType algo, RateLimitConfig config, Clock clock) {
         return switch (algo) {
-            case TOKEN_BUCKET -> new TokenBucketRateLimiter(config);
-            case FIXED_WINDOW -> new FixedWindowRateLimiter(config);
-            case SLIDING_WINDOW -> new SlidingWindowRateLimiter(config);
+            case TOKEN_BUCKET -> new TokenBucketRateLimiter(config, clock);
+            case FIXED_WINDOW -> new FixedWindowRateLimiter(config, clock);
+            case SLIDING_WINDOW -> new SlidingWindowRateLimiter(config, clock);
+            case LOCK_FREE_TOKEN_BUCKET -> new PackedTokenBucketRateLimiter(config, clock);
+            case SLIDING_WINDOW_COUNTER -> new SlidingWindowCounterRateLimiter(config, clock);
+            case GCRA -> new GcraRateLimiter(config, clock);
             default -> throw new IllegalArgumentException("Unknown algorithm: " + algo);
         };
     }
@@ -49,16 +234,20 @@ class RateLimiterFactory {
 
 class TokenBucketRateLimiter extends RateLimiter {
     private final Map<String, Integer> tokens = new ConcurrentHashMap<>();
-    private final Map<String, Long> lastRefillTime = new HashMap<>();
+    private final Map<String, Long> lastRefillTime = new ConcurrentHashMap<>();
 
     public TokenBucketRateLimiter(RateLimitConfig config) {
-        super(config, RateLimitType.TOKEN_BUCKET);
+        this(config, Clock.SYSTEM);
+    }
+
+    public TokenBucketRateLimiter(RateLimitConfig config, Clock clock) {
+        super(config, RateLimitType.TOKEN_BUCKET, clock);
     }
 
     @Override
     public boolean allowRequest(String userId) {
         AtomicBoolean allowed = new AtomicBoolean(false);
-        long now = System.currentTimeMillis();
+        long now = clock.millis();
         tokens.compute(userId, (uId, availableTokens) -> {
            int currentTokens = refillTokens(userId, now);
            if(currentTokens > 0){
@@ -73,10 +262,34 @@ class TokenBucketRateLimiter extends RateLimiter {
         return allowed.get();
     }
 
+    // One clock read for the batch and one compute per distinct key covering all of its requests.
+    @Override
+    public void allowAll(String[] userIds, int[] permits, BitSet result) {
+        long now = clock.millis();
+        KeyGroups batch = new KeyGroups(userIds, permits);
+        for (int g = 0; g < batch.size; g++) {
+            int first = batch.first[g];
+            tokens.compute(batch.keys[g], (uId, availableTokens) -> {
+                int currentTokens = refillTokens(uId, now);
+                for (int i = first; i >= 0; i = batch.next[i]) {
+                    int wanted = KeyGroups.permits(permits, i);
+                    if (wanted <= currentTokens) {
+                        currentTokens -= wanted;
+                        result.set(i);
+                    } else {
+                        result.clear(i);
+                    }
+                }
+                return currentTokens;
+            });
+        }
+    }
+
     private int refillTokens(String userId, long now) {
         double refillRate = (double)config.getWindowInSeconds() / config.getMaxRequests();
 
-        long lastRefill = lastRefillTime.getOrDefault(userId, now);
+        // record the first request's time, or the bucket never starts refilling
+        long lastRefill = lastRefillTime.computeIfAbsent(userId, id -> now);
         long elapsedTime = (now - lastRefill) / 1000;
         int refillToken = (int) (elapsedTime / refillRate);
         int currenTokens = tokens.getOrDefault(userId, config.getMaxRequests());
@@ -94,18 +307,23 @@ class SlidingWindowRateLimiter extends RateLimiter{
     private final Map<String, Queue<Long>> requestLog = new ConcurrentHashMap<>();
 
     public SlidingWindowRateLimiter(RateLimitConfig config) {
-        super(config, RateLimitType.SLIDING_WINDOW);
+        this(config, Clock.SYSTEM);
+    }
+
+    public SlidingWindowRateLimiter(RateLimitConfig config, Clock clock) {
+        super(config, RateLimitType.SLIDING_WINDOW, clock);
     }
 
     @Override
     public boolean allowRequest(String userId) {
+        long now = clock.millis();
         AtomicBoolean allowed = new AtomicBoolean(false);
-        long now = System.currentTimeMillis();
+        long windowMillis = config.getWindowInSeconds() * 1000L;
 
         requestLog.compute(userId, (uId, log) -> {
            if(log == null)
                log = new ArrayDeque<>();
-           while(!log.isEmpty() && (now - log.peek()) > config.getWindowInSeconds()){
+           while(!log.isEmpty() && (now - log.peek()) >= windowMillis){
                log.poll();
            }
            if(log.size() < config.getMaxRequests()){
@@ -116,24 +334,56 @@ class SlidingWindowRateLimiter extends RateLimiter{
         });
         return allowed.get();
     }
+    // One clock read for the batch and one compute per distinct key covering all of its requests;
+    // a request for n permits logs n timestamps.
+    @Override
+    public void allowAll(String[] userIds, int[] permits, BitSet result) {
+        long now = clock.millis();
+        long windowMillis = config.getWindowInSeconds() * 1000L;
+        KeyGroups batch = new KeyGroups(userIds, permits);
+        for (int g = 0; g < batch.size; g++) {
+            int first = batch.first[g];
+            requestLog.compute(batch.keys[g], (uId, log) -> {
+                if (log == null)
+                    log = new ArrayDeque<>();
+                while (!log.isEmpty() && (now - log.peek()) >= windowMillis)
+                    log.poll();
+                for (int i = first; i >= 0; i = batch.next[i]) {
+                    int wanted = KeyGroups.permits(permits, i);
+                    if (wanted <= config.getMaxRequests() - log.size()) {
+                        for (int p = 0; p < wanted; p++) log.add(now);
+                        result.set(i);
+                    } else {
+                        result.clear(i);
+                    }
+                }
+                return log;
+            });
+        }
+    }
 }
 
 class FixedWindowRateLimiter extends RateLimiter {
     private final Map<String, Integer> requestCount = new ConcurrentHashMap<>();
-    private final Map<String, Long> windowStart = new HashMap<>();
+    private final Map<String, Long> windowStart = new ConcurrentHashMap<>();
 
     public FixedWindowRateLimiter(RateLimitConfig config) {
-        super(config, RateLimitType.FIXED_WINDOW);
+        this(config, Clock.SYSTEM);
+    }
+
+    public FixedWindowRateLimiter(RateLimitConfig config, Clock clock) {
+        super(config, RateLimitType.FIXED_WINDOW, clock);
     }
 
     @Override
     public boolean allowRequest(String userId) {
         AtomicBoolean allowed = new AtomicBoolean(false);
 
-        long currentReqWindow = System.currentTimeMillis() / 1000 / config.getWindowInSeconds();
+        long currentReqWindow = clock.millis() / 1000 / config.getWindowInSeconds();
 
         requestCount.compute(userId, (id, count) -> {
-            long lastReqWindow = windowStart.getOrDefault(id, currentReqWindow);
+            // record the first request's window, or the count is never reset
+            long lastReqWindow = windowStart.computeIfAbsent(id, key -> currentReqWindow);
 
             if (lastReqWindow != currentReqWindow) {
                 windowStart.put(id, currentReqWindow);
@@ -153,10 +403,616 @@ class FixedWindowRateLimiter extends RateLimiter {
 
         return allowed.get();
     }
+
+    // One clock read for the batch and one compute per distinct key covering all of its requests.
+    @Override
+    public void allowAll(String[] userIds, int[] permits, BitSet result) {
+        long currentReqWindow = clock.millis() / 1000 / config.getWindowInSeconds();
+        KeyGroups batch = new KeyGroups(userIds, permits);
+        for (int g = 0; g < batch.size; g++) {
+            int first = batch.first[g];
+            requestCount.compute(batch.keys[g], (id, count) -> {
+                long lastReqWindow = windowStart.computeIfAbsent(id, key -> currentReqWindow);
+                int used = count == null ? 0 : count;
+                if (lastReqWindow != currentReqWindow) {
+                    windowStart.put(id, currentReqWindow);
+                    used = 0;
+                }
+                for (int i = first; i >= 0; i = batch.next[i]) {
+                    int wanted = KeyGroups.permits(permits, i);
+                    if (wanted <= config.getMaxRequests() - used) {
+                        used += wanted;
+                        result.set(i);
+                    } else {
+                        result.clear(i);
+                    }
+                }
+                return used;
+            });
+        }
+    }
+}
+
+// Token bucket whose whole per-key state is one AtomicLong: the top 21 bits hold the tokens and
+// the low 43 bits the last refill time in microseconds. The time field wraps every ~101 days and
+// elapsed time is computed modulo that, so only idle gaps longer than the wrap are misread.
+// allowRequest is a CAS loop: no lock, and no allocation once the key has been seen.
+class PackedTokenBucketRateLimiter extends RateLimiter {
+    private static final int TIME_BITS = 43;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    static final int MAX_TOKENS = (1 << (64 - TIME_BITS)) - 1;
+
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final long maxTokens;
+    private final long windowMicros;
+
+    public PackedTokenBucketRateLimiter(RateLimitConfig config) {
+        this(config, Clock.SYSTEM);
+    }
+
+    public PackedTokenBucketRateLimiter(RateLimitConfig config, Clock clock) {
+        super(config, RateLimitType.LOCK_FREE_TOKEN_BUCKET, clock);
+        if (config.getMaxRequests() <= 0 || config.getMaxRequests() > MAX_TOKENS)
+            throw new IllegalArgumentException("maxRequests must be between 1 and " + MAX_TOKENS);
+        this.maxTokens = config.getMaxRequests();
+        this.windowMicros = TimeUnit.SECONDS.toMicros(config.getWindowInSeconds());
+    }
+
+    @Override
+    public boolean allowRequest(String userId) {
+        long now = clock.micros() & TIME_MASK;
+        AtomicLong state = bucketFor(userId, now);
+
+        while (true) {
+            long current = state.get();
+            long refilled = refill(current, now);
+            long tokens = refilled >>> TIME_BITS;
+            if (tokens == 0)
+                return false;
+            if (state.compareAndSet(current, refilled - (1L << TIME_BITS)))
+                return true;
+        }
+    }
+
+    // One clock read for the batch and one CAS per distinct key covering all of its requests.
+    @Override
+    public void allowAll(String[] userIds, int[] permits, BitSet result) {
+        long now = clock.micros() & TIME_MASK;
+        KeyGroups batch = new KeyGroups(userIds, permits);
+        for (int g = 0; g < batch.size; g++) {
+            AtomicLong state = bucketFor(batch.keys[g], now);
+            while (true) {
+                long current = state.get();
+                long refilled = refill(current, now);
+                long tokens = refilled >>> TIME_BITS;
+                for (int i = batch.first[g]; i >= 0; i = batch.next[i]) {
+                    int wanted = KeyGroups.permits(permits, i);
+                    if (wanted <= tokens) {
+                        tokens -= wanted;
+                        result.set(i);
+                    } else {
+                        result.clear(i);
+                    }
+                }
+                if (state.compareAndSet(current, pack(tokens, refilled & TIME_MASK)))
+                    break;
+            }
+        }
+    }
+
+    private AtomicLong bucketFor(String userId, long now) {
+        AtomicLong state = buckets.get(userId);
+        if (state == null)
+            state = buckets.computeIfAbsent(userId, id -> new AtomicLong(pack(maxTokens, now)));
+        return state;
+    }
+
+    // The packed state after refilling up to now.
+    private long refill(long current, long now) {
+        long tokens = current >>> TIME_BITS;
+        long lastRefill = current & TIME_MASK;
+        long elapsed = (now - lastRefill) & TIME_MASK;
+        // another thread stored a later timestamp than the one we read; nothing to refill
+        if (elapsed > TIME_MASK / 2) elapsed = 0;
+
+        if (elapsed >= windowMicros)
+            return pack(maxTokens, now);
+        long added = elapsed * maxTokens / windowMicros;
+        if (added == 0)
+            return current;
+        tokens = Math.min(maxTokens, tokens + added);
+        // only move the clock by the time those tokens took, so fractions carry over
+        lastRefill = tokens == maxTokens ? now : (lastRefill + added * windowMicros / maxTokens) & TIME_MASK;
+        return pack(tokens, lastRefill);
+    }
+
+    private static long pack(long tokens, long micros) {
+        return (tokens << TIME_BITS) | micros;
+    }
+}
+
+// Sliding-window counter: keeps only this window's and the previous window's counts per key and
+// estimates the sliding count as previous * (unelapsed share of the window) + current. O(1) memory
+// and time per key, at the cost of assuming requests were spread evenly over the previous window.
+class SlidingWindowCounterRateLimiter extends RateLimiter {
+    private static class WindowCounts {
+        long window;
+        int current;
+        int previous;
+    }
+
+    private final Map<String, WindowCounts> counts = new ConcurrentHashMap<>();
+    private final long windowMillis;
+
+    public SlidingWindowCounterRateLimiter(RateLimitConfig config) {
+        this(config, Clock.SYSTEM);
+    }
+
+    public SlidingWindowCounterRateLimiter(RateLimitConfig config, Clock clock) {
+        super(config, RateLimitType.SLIDING_WINDOW_COUNTER, clock);
+        this.windowMillis = config.getWindowInSeconds() * 1000L;
+    }
+
+    @Override
+    public boolean allowRequest(String userId) {
+        long now = clock.millis();
+        WindowCounts c = countsFor(userId);
+        synchronized (c) {
+            return take(c, now, 1);
+        }
+    }
+
+    // One clock read for the batch and one lock per distinct key.
+    @Override
+    public void allowAll(String[] userIds, int[] permits, BitSet result) {
+        long now = clock.millis();
+        KeyGroups batch = new KeyGroups(userIds, permits);
+        for (int g = 0; g < batch.size; g++) {
+            WindowCounts c = countsFor(batch.keys[g]);
+            synchronized (c) {
+                for (int i = batch.first[g]; i >= 0; i = batch.next[i]) {
+                    if (take(c, now, KeyGroups.permits(permits, i))) result.set(i);
+                    else result.clear(i);
+                }
+            }
+        }
+    }
+
+    private WindowCounts countsFor(String userId) {
+        WindowCounts c = counts.get(userId);
+        if (c == null)
+            c = counts.computeIfAbsent(userId, id -> new WindowCounts());
+        return c;
+    }
+
+    private boolean take(WindowCounts c, long now, int permits) {
+        long window = now / windowMillis;
+        if (window != c.window) {
+            c.previous = window == c.window + 1 ? c.current : 0;
+            c.current = 0;
+            c.window = window;
+        }
+        double unelapsed = 1.0 - (double) (now % windowMillis) / windowMillis;
+        if (c.previous * unelapsed + c.current + permits > config.getMaxRequests())
+            return false;
+        c.current += permits;
+        return true;
+    }
+}
+
+// Generic cell rate algorithm: token-bucket behaviour (bursts of up to maxRequests, refilling
+// evenly over the window) from one long per key, the theoretical arrival time (TAT) at which the
+// key's bucket would be full again. A request is admitted when pushing the TAT one emission
+// interval further leaves it no more than a window ahead of now. One CAS per decision, and a
+// refusal says exactly how long until the next request would be admitted. Times are kept in
+// nanoseconds, so the interval (window / maxRequests) loses under a nanosecond to rounding.
+class GcraRateLimiter extends RateLimiter {
+    private static final long UNSEEN = Long.MIN_VALUE;
+
+    private final Map<String, AtomicLong> arrivals = new ConcurrentHashMap<>();
+    private final long intervalNanos;
+    private final long windowNanos;
+
+    public GcraRateLimiter(RateLimitConfig config) {
+        this(config, Clock.SYSTEM);
+    }
+
+    public GcraRateLimiter(RateLimitConfig config, Clock clock) {
+        super(config, RateLimitType.GCRA, clock);
+        if (config.getMaxRequests() <= 0)
+            throw new IllegalArgumentException("maxRequests must be positive");
+        this.windowNanos = TimeUnit.SECONDS.toNanos(config.getWindowInSeconds());
+        this.intervalNanos = windowNanos / config.getMaxRequests();
+        if (intervalNanos <= 0)
+            throw new IllegalArgumentException("maxRequests must leave at least 1ns between requests: "
+                    + config.getMaxRequests() + " per " + config.getWindowInSeconds() + "s");
+    }
+
+    @Override
+    public boolean allowRequest(String userId) {
+        return acquire(userId) == 0;
+    }
+
+    // Exact: the number of microseconds until the same request would be admitted.
+    @Override
+    public long acquire(String userId) {
+        long now = TimeUnit.MICROSECONDS.toNanos(clock.micros());
+        AtomicLong tat = arrivalFor(userId);
+        while (true) {
+            long current = tat.get();
+            long next = Math.max(current == UNSEEN ? now : current, now) + intervalNanos;
+            long retryAfter = next - windowNanos - now;
+            if (retryAfter > 0)
+                return (retryAfter + 999) / 1000;
+            if (tat.compareAndSet(current, next))
+                return 0;
+        }
+    }
+
+    // One clock read for the batch and one CAS per distinct key covering all of its requests.
+    @Override
+    public void allowAll(String[] userIds, int[] permits, BitSet result) {
+        long now = TimeUnit.MICROSECONDS.toNanos(clock.micros());
+        KeyGroups batch = new KeyGroups(userIds, permits);
+        for (int g = 0; g < batch.size; g++) {
+            AtomicLong tat = arrivalFor(batch.keys[g]);
+            while (true) {
+                long current = tat.get();
+                long next = Math.max(current == UNSEEN ? now : current, now);
+                for (int i = batch.first[g]; i >= 0; i = batch.next[i]) {
+                    int wanted = KeyGroups.permits(permits, i);
+                    // more than maxRequests never fits, and would overflow the product
+                    long after = wanted > config.getMaxRequests() ? Long.MAX_VALUE : next + wanted * intervalNanos;
+                    if (after - windowNanos <= now) {
+                        next = after;
+                        result.set(i);
+                    } else {
+                        result.clear(i);
+                    }
+                }
+                if (tat.compareAndSet(current, next))
+                    break;
+            }
+        }
+    }
+
+    private AtomicLong arrivalFor(String userId) {
+        AtomicLong tat = arrivals.get(userId);
+        if (tat == null)
+            tat = arrivals.computeIfAbsent(userId, id -> new AtomicLong(UNSEEN));
+        return tat;
+    }
+}
+
+// How an adaptive limit reacts to one completed request: its round-trip time, how many requests
+// were in flight when it finished, and whether it was dropped (timed out or rejected downstream).
+interface LimitAlgorithm {
+    double update(double limit, long rttMicros, int inFlight, boolean dropped);
+}
+
+// Additive increase, multiplicative decrease: +1 per limit's worth of successes while the limit is
+// actually in use, and a cut by backoffRatio on every drop. Reacts only to failures, not latency.
+class AimdLimit implements LimitAlgorithm {
+    private final double backoffRatio;
+
+    public AimdLimit(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    @Override
+    public double update(double limit, long rttMicros, int inFlight, boolean dropped) {
+        if (dropped) return limit * backoffRatio;
+        return inFlight * 2 >= limit ? limit + 1 / limit : limit;
+    }
+}
+
+// TCP Vegas: the shortest RTT seen approximates the no-queueing RTT, so
+// limit * (1 - minRtt / rtt) estimates how many requests are queued downstream. The limit grows
+// while that queue is short (below alpha) and shrinks once it is long (above beta); both scale
+// with log10(limit). minRtt is re-probed every probeInterval samples so a slower downstream
+// becomes the new baseline.
+class VegasLimit implements LimitAlgorithm {
+    private final int probeInterval;
+    private long minRtt = Long.MAX_VALUE;
+    private long samples;
+
+    public VegasLimit(int probeInterval) {
+        this.probeInterval = probeInterval;
+    }
+
+    @Override
+    public double update(double limit, long rttMicros, int inFlight, boolean dropped) {
+        if (++samples % probeInterval == 0) minRtt = Long.MAX_VALUE;
+        double log = Math.max(1, Math.log10(limit));
+        if (dropped) return limit - log;
+        minRtt = Math.min(minRtt, rttMicros);
+
+        double queued = limit * (1 - (double) minRtt / rttMicros);
+        if (queued < 3 * log) return inFlight * 2 >= limit ? limit + log / limit * 4 : limit;
+        if (queued > 6 * log) return limit - log / limit * 4;
+        return limit;
+    }
+}
+
+// Gradient: compares a short-term RTT average with a slow long-term one (a time constant of ~20k
+// samples; a faster one follows the queue it should be detecting). When recent requests are
+// slower than usual (gradient below 1) the limit shrinks in proportion; sqrt(limit) of headroom
+// lets it grow again when they are not. The long-term average is pulled down quickly once recent
+// RTTs are far below it, so a past spike does not become the new normal.
+class GradientLimit implements LimitAlgorithm {
+    private double shortRtt;
+    private double longRtt;
+
+    @Override
+    public double update(double limit, long rttMicros, int inFlight, boolean dropped) {
+        if (shortRtt == 0) shortRtt = longRtt = rttMicros;
+        shortRtt += (rttMicros - shortRtt) * 0.1;
+        longRtt += (rttMicros - longRtt) * 0.00005;
+        if (longRtt / shortRtt > 2) longRtt *= 0.95;
+
+        double gradient = Math.max(0.5, Math.min(1.0, longRtt / shortRtt));
+        if (dropped) gradient = 0.5;
+        double target = limit * gradient + (inFlight * 2 >= limit ? Math.sqrt(limit) : 0);
+        return limit * 0.95 + target * 0.05;
+    }
+}
+
+// Limits how many requests are in flight to a downstream rather than how many start per window.
+// tryAcquire returns null at the limit; otherwise the caller reports how the request ended on the
+// returned permit and the algorithm moves the limit from that sample. Acquire and release are one
+// CAS each; limit updates are serialized, since the algorithms keep running averages.
+class AdaptiveConcurrencyLimiter {
+    private final LimitAlgorithm algorithm;
+    private final Clock clock;
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+    private double exactLimit;
+
+    // Only the first report on a permit releases it; later ones are ignored.
+    public class Permit {
+        private final long startMicros = clock.micros();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        public void onSuccess() {
+            if (released.compareAndSet(false, true)) complete(clock.micros() - startMicros, false);
+        }
+
+        public void onDropped() {
+            if (released.compareAndSet(false, true)) complete(clock.micros() - startMicros, true);
+        }
+    }
+
+    public AdaptiveConcurrencyLimiter(LimitAlgorithm algorithm, int initialLimit, int minLimit, int maxLimit, Clock clock) {
+        this.algorithm = algorithm;
+        this.clock = clock;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.exactLimit = initialLimit;
+    }
+
+    public Permit tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) return null;
+            if (inFlight.compareAndSet(current, current + 1)) return new Permit();
+        }
+    }
+
+    private void complete(long rttMicros, boolean dropped) {
+        int finishing = inFlight.getAndDecrement();
+        synchronized (this) {
+            exactLimit = Math.max(minLimit, Math.min(maxLimit, algorithm.update(exactLimit, Math.max(1, rttMicros), finishing, dropped)));
+            limit = (int) exactLimit;
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
+
+// Space-Saving heavy hitters: tracks at most capacity keys. An untracked key takes over the counter
+// with the smallest count and inherits that count as its error, so every key seen more than
+// total / capacity times is tracked and no count is overestimated by more than its error.
+class SpaceSavingSketch {
+    static class Counter {
+        final String key;
+        final long count;
+        final long error;
+
+        Counter(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    private final int capacity;
+    private final Map<String, long[]> counters = new HashMap<>(); // key -> {count, error}
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public SpaceSavingSketch(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void offer(String key) {
+        lock.lock();
+        try {
+            add(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the key instead of waiting when another thread holds the sketch; for sampled callers,
+    // that is just a slightly lower sample rate.
+    public boolean tryOffer(String key) {
+        if (!lock.tryLock()) return false;
+        try {
+            add(key);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(String key) {
+        long[] counter = counters.get(key);
+        if (counter != null) {
+            counter[0]++;
+            return;
+        }
+        if (counters.size() < capacity) {
+            counters.put(key, new long[]{1, 0});
+            return;
+        }
+        // a linear scan for the minimum; only misses pay it and the sketch is small
+        String minKey = null;
+        long[] min = null;
+        for (Map.Entry<String, long[]> e : counters.entrySet()) {
+            if (min == null || e.getValue()[0] < min[0]) {
+                minKey = e.getKey();
+                min = e.getValue();
+            }
+        }
+        counters.remove(minKey);
+        counters.put(key, new long[]{min[0] + 1, min[0]});
+    }
+
+    // The k largest counters, largest first; with reset, the sketch starts over afterwards.
+    public List<Counter> top(int k, boolean reset) {
+        List<Counter> top;
+        lock.lock();
+        try {
+            top = new ArrayList<>(counters.size());
+            for (Map.Entry<String, long[]> e : counters.entrySet())
+                top.add(new Counter(e.getKey(), e.getValue()[0], e.getValue()[1]));
+            if (reset) counters.clear();
+        } finally {
+            lock.unlock();
+        }
+        top.sort((a, b) -> Long.compare(b.count, a.count));
+        return top.size() > k ? new ArrayList<>(top.subList(0, k)) : top;
+    }
+}
+
+// Allowed/denied counts per tier and limiter type, plus the hottest keys. Counting is a LongAdder
+// increment; one decision in sampleRate also goes to the heavy-hitters sketch, whose lock would
+// otherwise serialize every decision, and is dropped rather than waited for if the sketch is busy.
+// Sketch counts are scaled back up by the sample rate when reported, so hot-key rates are estimates.
+class RateLimiterMetrics {
+    private static final int TYPES = RateLimitType.values().length;
+
+    private final LongAdder[] allowed = new LongAdder[UserTier.values().length * TYPES];
+    private final LongAdder[] denied = new LongAdder[allowed.length];
+    private final SpaceSavingSketch hotKeys;
+    private final int sampleMask;
+    private final int topK;
+    private long intervalStart;
+
+    // sampleRate is rounded down to a power of two.
+    public RateLimiterMetrics(int topK, int sampleRate) {
+        for (int i = 0; i < allowed.length; i++) {
+            allowed[i] = new LongAdder();
+            denied[i] = new LongAdder();
+        }
+        this.topK = topK;
+        this.hotKeys = new SpaceSavingSketch(topK * 8);
+        this.sampleMask = Integer.highestOneBit(Math.max(1, sampleRate)) - 1;
+        this.intervalStart = System.currentTimeMillis();
+    }
+
+    public void record(UserTier tier, RateLimitType type, String userId, boolean wasAllowed) {
+        (wasAllowed ? allowed : denied)[tier.ordinal() * TYPES + type.ordinal()].increment();
+        if ((ThreadLocalRandom.current().nextInt() & sampleMask) == 0)
+            hotKeys.tryOffer(userId);
+    }
+
+    // Counters are cumulative; hot keys and their rates cover the time since the previous snapshot.
+    public synchronized MetricsSnapshot snapshot() {
+        long now = System.currentTimeMillis();
+        List<MetricsSnapshot.Row> rows = new ArrayList<>();
+        for (UserTier tier : UserTier.values()) {
+            for (RateLimitType type : RateLimitType.values()) {
+                int i = tier.ordinal() * TYPES + type.ordinal();
+                long a = allowed[i].sum(), d = denied[i].sum();
+                if (a + d > 0) rows.add(new MetricsSnapshot.Row(tier, type, a, d));
+            }
+        }
+        double seconds = Math.max(1, now - intervalStart) / 1000.0;
+        List<MetricsSnapshot.HotKey> hot = new ArrayList<>();
+        for (SpaceSavingSketch.Counter c : hotKeys.top(topK, true))
+            hot.add(new MetricsSnapshot.HotKey(c.key, c.count * (sampleMask + 1) / seconds, c.error * (sampleMask + 1) / seconds));
+        intervalStart = now;
+        return new MetricsSnapshot(now, rows, hot);
+    }
+}
+
+@Getter
+@AllArgsConstructor
+class MetricsSnapshot {
+    @Getter
+    @AllArgsConstructor
+    static class Row {
+        private final UserTier tier;
+        private final RateLimitType type;
+        private final long allowed;
+        private final long denied;
+    }
+
+    // rate and its possible overestimate, in requests per second
+    @Getter
+    @AllArgsConstructor
+    static class HotKey {
+        private final String key;
+        private final double rate;
+        private final double error;
+    }
+
+    private final long takenAt;
+    private final List<Row> rows;
+    private final List<HotKey> hotKeys;
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("rate limiter metrics at ").append(takenAt).append('\n');
+        for (Row row : rows)
+            sb.append(String.format("  %-8s %-24s allowed %,12d denied %,12d%n", row.tier, row.type, row.allowed, row.denied));
+        for (HotKey hot : hotKeys)
+            sb.append(String.format("  hot %-20s %,12.1f req/s (+/- %,.1f)%n", hot.key, hot.rate, hot.error));
+        return sb.toString();
+    }
+}
+
+// Takes a snapshot every period on a daemon thread and hands it to the sink (a log, a metrics
+// backend); stop it with close().
+class MetricsExporter implements AutoCloseable {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rate-limiter-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MetricsExporter(RateLimiterMetrics metrics, long periodMillis, Consumer<MetricsSnapshot> sink) {
+        scheduler.scheduleAtFixedRate(() -> sink.accept(metrics.snapshot()), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
 }
 
 class RateLimiterService{
     private final Map<UserTier, RateLimiter> rateLimiters = new HashMap<>();
+    private final RateLimiterMetrics metrics = new RateLimiterMetrics(10, 64);
 
     public RateLimiterService(){
         rateLimiters.put(UserTier.FREE, RateLimiterFactory.createRateLimiter(RateLimitType.TOKEN_BUCKET, new RateLimitConfig(10, 60)));
@@ -168,9 +1024,339 @@ class RateLimiterService{
         if (rateLimiter == null){
             throw new IllegalArgumentException("No limiter configured for tier " + user.tier);
         }
-        return rateLimiter.allowRequest(user.id);
+        boolean allowed = rateLimiter.allowRequest(user.id);
+        metrics.record(user.tier, rateLimiter.type, user.id, allowed);
+        return allowed;
+    }
+
+    public RateLimiterMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Splits the batch by tier and hands each tier's slice to its limiter in one call.
+    public BitSet allowAll(User[] users) {
+        BitSet result = new BitSet(users.length);
+        for (User user : users) {
+            if (!rateLimiters.containsKey(user.tier))
+                throw new IllegalArgumentException("No limiter configured for tier " + user.tier);
+        }
+        for (Map.Entry<UserTier, RateLimiter> tier : rateLimiters.entrySet()) {
+            int count = 0;
+            for (User user : users) if (user.tier == tier.getKey()) count++;
+            if (count == 0) continue;
+
+            String[] ids = new String[count];
+            int[] positions = new int[count];
+            for (int i = 0, n = 0; i < users.length; i++) {
+                if (users[i].tier != tier.getKey()) continue;
+                ids[n] = users[i].id;
+                positions[n++] = i;
+            }
+            BitSet tierResult = new BitSet(count);
+            tier.getValue().allowAll(ids, null, tierResult);
+            for (int i = 0; i < count; i++) {
+                metrics.record(tier.getKey(), tier.getValue().type, ids[i], tierResult.get(i));
+                if (tierResult.get(i)) result.set(positions[i]);
+            }
+        }
+        return result;
+    }
+}
+// Decisions/sec for a limiter shared by many threads over a shared key set.
+// Run: java -cp <out> LowLevelDesign.RateLimiter_Atharv.java.RateLimiterThroughputBenchmark [threads] [keys] [millis]
+class RateLimiterThroughputBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int keyCount = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 2_000;
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) keys[i] = "user" + i;
+
+        RateLimitConfig config = new RateLimitConfig(1_000, 1);
+        for (RateLimitType type : new RateLimitType[]{RateLimitType.TOKEN_BUCKET, RateLimitType.LOCK_FREE_TOKEN_BUCKET, RateLimitType.GCRA}) {
+            double perSecond = run(RateLimiterFactory.createRateLimiter(type, config), keys, threads, millis);
+            System.out.printf("%-24s %d threads %,15.0f decisions/s%n", type, threads, perSecond);
+        }
+    }
+
+    static double run(RateLimiter limiter, String[] keys, int threads, long millis) throws InterruptedException {
+        LongAdder decisions = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int offset = t * 7919;
+            workers[t] = new Thread(() -> {
+                try { start.await(); } catch (InterruptedException e) { return; }
+                long done = 0;
+                int i = offset;
+                while (System.nanoTime() < deadline[0]) {
+                    for (int n = 0; n < 256; n++) limiter.allowRequest(keys[(i++ & Integer.MAX_VALUE) % keys.length]);
+                    done += 256;
+                }
+                decisions.add(done);
+            });
+            workers[t].start();
+        }
+        deadline[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+        return decisions.sum() * 1000.0 / millis;
+    }
+}
+
+// Accuracy and memory of the sliding-window counter against the exact request log, on simulated
+// time so both see identical traffic. Accuracy: traffic swinging between 0.5x and 2.5x a
+// 6,000 req/min limit, reporting how many requests each admits and the worst count the counter
+// lets into any true 60s sliding window. Memory: retained heap per key, logs filled to the limit.
+// Run: java -cp <out> LowLevelDesign.RateLimiter_Atharv.java.SlidingWindowAccuracyBenchmark [maxPerMinute]
+class SlidingWindowAccuracyBenchmark {
+    public static void main(String[] args) {
+        int maxPerMinute = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+
+        RateLimitConfig accuracyConfig = new RateLimitConfig(6_000, 60);
+        ManualClock clock = new ManualClock(0);
+        SlidingWindowRateLimiter log = new SlidingWindowRateLimiter(accuracyConfig, clock);
+        SlidingWindowCounterRateLimiter counter = new SlidingWindowCounterRateLimiter(accuracyConfig, clock);
+        ArrayDeque<Long> admittedByCounter = new ArrayDeque<>();
+        Random random = new Random(5);
+        long now = 0, decisions = 0, exactAllowed = 0, counterAllowed = 0, worstWindow = 0;
+        double meanGapMillis = 60_000.0 / accuracyConfig.getMaxRequests();
+        // 30 simulated minutes; the rate flips every 20 seconds
+        while (now < 1_800_000) {
+            double load = (now / 20_000) % 2 == 0 ? 2.5 : 0.5;
+            now += Math.round(-Math.log(1 - random.nextDouble()) * meanGapMillis / load);
+            decisions++;
+            clock.set(now);
+            if (log.allowRequest("tenant")) exactAllowed++;
+            if (counter.allowRequest("tenant")) {
+                counterAllowed++;
+                admittedByCounter.add(now);
+                while (now - admittedByCounter.peek() >= 60_000) admittedByCounter.poll();
+                worstWindow = Math.max(worstWindow, admittedByCounter.size());
+            }
+        }
+        System.out.printf("decisions %,d: log admitted %,d, counter admitted %,d (%+.2f%%)%n",
+                decisions, exactAllowed, counterAllowed, (counterAllowed - exactAllowed) * 100.0 / exactAllowed);
+        System.out.printf("worst true 60s window under the counter: %,d for a limit of %,d (%+.2f%%)%n",
+                worstWindow, accuracyConfig.getMaxRequests(),
+                (worstWindow - accuracyConfig.getMaxRequests()) * 100.0 / accuracyConfig.getMaxRequests());
+
+        RateLimitConfig memoryConfig = new RateLimitConfig(maxPerMinute, 60);
+        System.out.printf("retained heap per key at %,d req/min: log %,d bytes, counter %,d bytes%n", maxPerMinute,
+                heapPerKey(clock, new SlidingWindowRateLimiter(memoryConfig, clock), 20, maxPerMinute),
+                heapPerKey(clock, new SlidingWindowCounterRateLimiter(memoryConfig, clock), 100_000, 10));
+    }
+
+    static long heapPerKey(ManualClock clock, RateLimiter limiter, int keys, int requestsPerKey) {
+        long before = usedHeap();
+        for (int k = 0; k < keys; k++) {
+            for (int i = 0; i < requestsPerKey; i++) {
+                clock.set(i * 50_000L / requestsPerKey);
+                limiter.allowRequest("tenant" + k);
+            }
+        }
+        long retained = usedHeap() - before;
+        Reference.reachabilityFence(limiter);
+        return retained / keys;
+    }
+
+    static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
+
+// Cost of RateLimiterMetrics.record on top of a decision, and whether the sketch finds the hot keys:
+// a Zipf-like stream where user0..user4 carry most of the traffic.
+// Run: java -cp <out> LowLevelDesign.RateLimiter_Atharv.java.MetricsOverheadBenchmark [threads] [millis]
+class MetricsOverheadBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1_000;
+        String[] keys = new String[4096];
+        Random random = new Random(11);
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = "user" + (random.nextInt(100) < 60 ? random.nextInt(5) : random.nextInt(100_000));
+
+        RateLimitConfig config = new RateLimitConfig(1_000_000, 1);
+        RateLimiter plain = RateLimiterFactory.createRateLimiter(RateLimitType.GCRA, config);
+        RateLimiterMetrics metrics = new RateLimiterMetrics(5, 64);
+        RateLimiter recorded = new RateLimiter(config, RateLimitType.GCRA, Clock.SYSTEM) {
+            @Override
+            public boolean allowRequest(String userId) {
+                boolean allowed = plain.allowRequest(userId);
+                metrics.record(UserTier.FREE, RateLimitType.GCRA, userId, allowed);
+                return allowed;
+            }
+        };
+        for (int round = 0; round < 2; round++) {
+            double without = RateLimiterThroughputBenchmark.run(plain, keys, threads, millis);
+            double with = RateLimiterThroughputBenchmark.run(recorded, keys, threads, millis);
+            System.out.printf("%d threads: %,.0f decisions/s without metrics, %,.0f with; %.1f ns added per decision (%.1f ns of CPU)%n",
+                    threads, without, with, 1e9 / with - 1e9 / without,
+                    (1e9 / with - 1e9 / without) * Math.min(threads, Runtime.getRuntime().availableProcessors()));
+        }
+        System.out.print(metrics.snapshot());
+    }
+}
+
+// Event-driven stand-in for a downstream service on simulated time: `servers` requests run in
+// parallel and the rest wait in FIFO order. A service time is a fixed 80% of the mean plus an
+// exponentially distributed rest. submit returns when the request will finish; setServers changes
+// capacity mid-run.
+class SimulatedDownstream {
+    private final PriorityQueue<Long> freeAt = new PriorityQueue<>();
+    private final Random random;
+    private final long meanServiceMicros;
+
+    public SimulatedDownstream(int servers, long meanServiceMicros, long seed) {
+        this.meanServiceMicros = meanServiceMicros;
+        this.random = new Random(seed);
+        setServers(servers, 0);
+    }
+
+    public long submit(long nowMicros) {
+        long start = Math.max(nowMicros, freeAt.poll());
+        long finish = start + meanServiceMicros * 4 / 5 + Math.round(-Math.log(1 - random.nextDouble()) * meanServiceMicros / 5);
+        freeAt.add(finish);
+        return finish;
+    }
+
+    // A removed server still finishes what it has already accepted.
+    public void setServers(int servers, long nowMicros) {
+        while (freeAt.size() > servers) {
+            List<Long> kept = new ArrayList<>(freeAt);
+            kept.sort(null);
+            kept.remove(kept.size() - 1);
+            freeAt.clear();
+            freeAt.addAll(kept);
+        }
+        while (freeAt.size() < servers) freeAt.add(nowMicros);
     }
 }
+
+// Overload test on simulated time: Poisson arrivals at 1.5x the downstream's capacity, which halves
+// halfway through. Clients give up after a timeout (the downstream still does the work). Compares
+// no limiter, fixed-rate limiters tuned to 90% of the starting capacity, and the adaptive limiters.
+// Goodput counts requests that completed within the timeout.
+// Run: java -cp <out> LowLevelDesign.RateLimiter_Atharv.java.AdaptiveConcurrencyBenchmark [seconds]
+class AdaptiveConcurrencyBenchmark {
+    static final int SERVERS = 20;
+    static final long SERVICE_MICROS = 10_000;
+    static final long TIMEOUT_MICROS = 100_000;
+    static final double ARRIVALS_PER_SECOND = 3_000;
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        System.out.printf("%-24s %10s %10s %10s %12s %9s %9s %10s%n",
+                "limiter", "admitted", "rejected", "timeouts", "goodput/s", "p50 ms", "p99 ms", "end limit");
+        run("none", null, null, seconds);
+        for (RateLimitType type : new RateLimitType[]{RateLimitType.FIXED_WINDOW, RateLimitType.GCRA}) {
+            ManualClock clock = new ManualClock(0);
+            RateLimitConfig config = new RateLimitConfig((int) (SERVERS * 1_000_000L / SERVICE_MICROS * 0.9), 1);
+            run(type.toString(), clock, RateLimiterFactory.createRateLimiter(type, config, clock), seconds);
+        }
+        runAdaptive("AIMD", new AimdLimit(0.9), seconds);
+        runAdaptive("VEGAS", new VegasLimit(5_000), seconds);
+        runAdaptive("GRADIENT", new GradientLimit(), seconds);
+    }
+
+    static void runAdaptive(String name, LimitAlgorithm algorithm, int seconds) {
+        ManualClock clock = new ManualClock(0);
+        run(name, clock, new AdaptiveConcurrencyLimiter(algorithm, 20, 1, 1_000, clock), seconds);
+    }
+
+    // limiter is null, a RateLimiter, or an AdaptiveConcurrencyLimiter
+    static void run(String name, ManualClock clock, Object limiter, int seconds) {
+        Random arrivals = new Random(1);
+        SimulatedDownstream downstream = new SimulatedDownstream(SERVERS, SERVICE_MICROS, 2);
+        // {time the client learns the outcome, finish time, arrival time}, plus the permit
+        PriorityQueue<Object[]> outcomes = new PriorityQueue<>(Comparator.comparingLong(o -> (long) o[0]));
+        List<Long> latencies = new ArrayList<>();
+        long end = seconds * 1_000_000L, admitted = 0, rejected = 0, timeouts = 0, good = 0;
+        boolean halved = false;
+
+        for (long now = 0; now < end; ) {
+            now += Math.max(1, Math.round(-Math.log(1 - arrivals.nextDouble()) * 1_000_000 / ARRIVALS_PER_SECOND));
+            if (!halved && now >= end / 2) {
+                downstream.setServers(SERVERS / 2, now);
+                halved = true;
+            }
+            while (!outcomes.isEmpty() && (long) outcomes.peek()[0] <= now) {
+                Object[] outcome = outcomes.poll();
+                long learnedAt = (long) outcome[0];
+                boolean timedOut = (long) outcome[1] > learnedAt;
+                if (clock != null) clock.setMicros(learnedAt);
+                latencies.add(learnedAt - (long) outcome[2]);
+                if (timedOut) timeouts++;
+                else good++;
+                if (outcome[3] != null) {
+                    AdaptiveConcurrencyLimiter.Permit permit = (AdaptiveConcurrencyLimiter.Permit) outcome[3];
+                    if (timedOut) permit.onDropped();
+                    else permit.onSuccess();
+                }
+            }
+            if (clock != null) clock.setMicros(now);
+
+            AdaptiveConcurrencyLimiter.Permit permit = null;
+            boolean allowed;
+            if (limiter instanceof RateLimiter) allowed = ((RateLimiter) limiter).allowRequest("downstream");
+            else if (limiter instanceof AdaptiveConcurrencyLimiter) allowed = (permit = ((AdaptiveConcurrencyLimiter) limiter).tryAcquire()) != null;
+            else allowed = true;
+            if (!allowed) {
+                rejected++;
+                continue;
+            }
+            admitted++;
+            long finish = downstream.submit(now);
+            outcomes.add(new Object[]{Math.min(finish, now + TIMEOUT_MICROS), finish, now, permit});
+        }
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("%-24s %,10d %,10d %,10d %,12.0f %9.1f %9.1f %10s%n", name, admitted, rejected, timeouts,
+                good / (double) seconds, sorted[sorted.length / 2] / 1000.0, sorted[(int) (sorted.length * 0.99)] / 1000.0,
+                limiter instanceof AdaptiveConcurrencyLimiter ? String.valueOf(((AdaptiveConcurrencyLimiter) limiter).getLimit()) : "-");
+    }
+}
+
+// GCRA against the token buckets on one simulated trace (same manual clock, same arrivals): how
+// many requests each admits and the retained heap per key. Throughput is in
+// RateLimiterThroughputBenchmark, which includes GCRA.
+// Run: java -cp <out> LowLevelDesign.RateLimiter_Atharv.java.GcraComparison [keys]
+class GcraComparison {
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        RateLimitConfig config = new RateLimitConfig(100, 10);
+        RateLimitType[] types = {RateLimitType.TOKEN_BUCKET, RateLimitType.LOCK_FREE_TOKEN_BUCKET, RateLimitType.GCRA};
+
+        System.out.printf("%-24s %10s %18s%n", "type", "admitted", "heap bytes/key");
+        for (RateLimitType type : types) {
+            ManualClock clock = new ManualClock(0);
+            RateLimiter limiter = RateLimiterFactory.createRateLimiter(type, config, clock);
+            Random random = new Random(7);
+            long admitted = 0;
+            // 10 simulated minutes of bursty traffic at about twice the allowed rate
+            for (long now = 0; now < 600_000; ) {
+                now += random.nextInt(100) < 5 ? 2_000 : random.nextInt(10);
+                clock.set(now);
+                if (limiter.allowRequest("tenant")) admitted++;
+            }
+            ManualClock heapClock = new ManualClock(0);
+            long perKey = SlidingWindowAccuracyBenchmark.heapPerKey(heapClock,
+                    RateLimiterFactory.createRateLimiter(type, config, heapClock), keys, 3);
+            System.out.printf("%-24s %,10d %,18d%n", type, admitted, perKey);
+        }
+
+        ManualClock clock = new ManualClock(0);
+        RateLimiter gcra = RateLimiterFactory.createRateLimiter(RateLimitType.GCRA, new RateLimitConfig(2, 1), clock);
+        StringBuilder sb = new StringBuilder("GCRA 2/s, retry-after in micros at t=0:");
+        for (int i = 0; i < 4; i++) sb.append(' ').append(gcra.acquire("tenant"));
+        clock.advance(gcra.acquire("tenant") / 1000);
+        System.out.println(sb + "; after waiting it out: " + gcra.acquire("tenant"));
+    }
+}
+
 public class Solution {
     public static void main(String[] args) throws InterruptedException {
         RateLimiterService rateLimiterService = new RateLimiterService();
@@ -191,5 +1377,15 @@ public class Solution {
             System.out.println("Request " + i + " for Premium User: " + (allowed ? "ALLOWED" : "BLOCKED"));
             Thread.sleep(100);
         }
+
+        System.out.println("\n" + rateLimiterService.getMetrics().snapshot());
+
+        System.out.println("=== Window boundary on a manual clock ===");
+        ManualClock clock = new ManualClock(59_999);
+        RateLimiter fixedWindow = RateLimiterFactory.createRateLimiter(RateLimitType.FIXED_WINDOW, new RateLimitConfig(2, 60), clock);
+        for (int i = 1; i <= 3; i++)
+            System.out.println("t=59.999s request " + i + ": " + (fixedWindow.allowRequest("user3") ? "ALLOWED" : "BLOCKED"));
+        clock.advance(1);
+        System.out.println("t=60.000s request 4: " + (fixedWindow.allowRequest("user3") ? "ALLOWED" : "BLOCKED"));
     }
 }
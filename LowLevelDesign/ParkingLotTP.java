@@ -2,11 +2,45 @@ package TargetedPractice.ParkingLot;
 
 import lombok.Setter;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 enum VehicleType { CAR, BIKE, TRUCK }
 enum ParkingType { SMALL, MEDIUM, LARGE }
@@ -17,7 +51,12 @@ class Vehicle {
     VehicleType vehicleType;
 
     public Vehicle(String vehicleNo, VehicleType vehicleType) {
-        this.id = "V_" + UUID.randomUUID().toString();
+        this("V_" + UUID.randomUUID().toString(), vehicleNo, vehicleType);
+    }
+
+    // For vehicles read back from the ticket journal.
+    Vehicle(String id, String vehicleNo, VehicleType vehicleType) {
+        this.id = id;
         this.vehicleNo = vehicleNo;
         this.vehicleType = vehicleType;
     }
@@ -36,8 +75,13 @@ class Ticket {
     Vehicle vehicle;
 
     public Ticket(Vehicle vehicle, ParkingSpot spot) {
-        this.id = "TICK_" + UUID.randomUUID().toString();
-        this.startTime = LocalDateTime.now();
+        this("TICK_" + UUID.randomUUID().toString(), LocalDateTime.now(), vehicle, spot);
+    }
+
+    // For tickets read back from the ticket journal.
+    Ticket(String id, LocalDateTime startTime, Vehicle vehicle, ParkingSpot spot) {
+        this.id = id;
+        this.startTime = startTime;
         this.vehicle = vehicle;
         this.spot = spot;
     }
@@ -47,6 +91,10 @@ class ParkingSpot {
     String id;
     ParkingType parkingType;
     boolean occupied;
+    // set when the spot is added to a floor
+    ParkingFloor floor;
+    FreeSpotIndex freeIndex;
+    int slot;
 
     public ParkingSpot(ParkingType parkingType) {
         this.id = "P_" + UUID.randomUUID().toString();
@@ -54,40 +102,215 @@ class ParkingSpot {
         this.occupied = false;
     }
 
+    // The free bit in the floor's index decides who gets the spot, so this cannot race with a claim.
     public synchronized boolean reserve() {
         if (occupied) return false;
+        if (freeIndex != null && !freeIndex.tryClaim(slot)) return false;
         occupied = true;
         return true;
     }
 
+    // Called by the index after this spot's free bit was won by a claim.
+    synchronized void markClaimed() {
+        occupied = true;
+    }
+
     public synchronized void release() {
+        if (!occupied) return;
         occupied = false;
+        if (freeIndex != null) freeIndex.markFree(slot);
+    }
+}
+
+// Free spots of one type on one floor as a two-level bitmap: bit i of words is set while slot i
+// is free, and bit w of summary is set while word w may have a free bit. Finding a free spot reads
+// the summary, then one word, so it costs the same on an empty floor as on a nearly full one
+// (one summary word covers 4096 spots). The summary is only a hint: a reader that finds a word
+// empty clears its bit, then re-checks the word in case a release raced with it. A striped
+// counter of free spots is kept alongside, so capacity questions never read the bitmap.
+class FreeSpotIndex {
+    private final LongAdder free = new LongAdder();
+    private volatile ParkingSpot[] spots = new ParkingSpot[0];
+    private volatile int size;
+    private volatile AtomicLongArray words = new AtomicLongArray(0);
+    private volatile AtomicLongArray summary = new AtomicLongArray(0);
+
+    // Adds happen while the floor is being built, so they grow the arrays by copying, doubling each
+    // time; they are serialized with each other but not with parking, and must not overlap it.
+    public synchronized int add(ParkingSpot spot) {
+        int slot = size;
+        if (slot == spots.length) {
+            ParkingSpot[] grown = Arrays.copyOf(spots, Math.max(64, slot * 2));
+            AtomicLongArray newWords = new AtomicLongArray((grown.length >> 6) + 1);
+            for (int w = 0; w < words.length(); w++) newWords.set(w, words.get(w));
+            AtomicLongArray newSummary = new AtomicLongArray((newWords.length() >> 6) + 1);
+            for (int w = 0; w < summary.length(); w++) newSummary.set(w, summary.get(w));
+            words = newWords;
+            summary = newSummary;
+            spots = grown;
+        }
+        spots[slot] = spot;
+        size = slot + 1;
+        if (!spot.occupied) markFree(slot);
+        return slot;
+    }
+
+    public void markFree(int slot) {
+        int w = slot >> 6;
+        if (setBit(words, w, slot & 63)) free.increment();
+        setBit(summary, w >> 6, w & 63);
+    }
+
+    // May briefly lag the bitmap by the claims and releases in progress.
+    public int freeCount() {
+        return (int) Math.max(0, free.sum());
+    }
+
+    public int capacity() {
+        return size;
+    }
+
+    // Null past the last slot.
+    public ParkingSpot spotAt(int slot) {
+        return slot < size ? spots[slot] : null;
+    }
+
+    // True if this call took the slot's free bit, i.e. won the spot.
+    public boolean tryClaim(int slot) {
+        int w = slot >> 6;
+        long mask = 1L << (slot & 63);
+        long current;
+        while (((current = words.get(w)) & mask) != 0) {
+            if (words.compareAndSet(w, current, current & ~mask)) {
+                free.decrement();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Finds and takes a free spot in one step. Losing a CAS re-reads only that word and tries its
+    // next free bit; the summary is only consulted again once the word has run out.
+    public ParkingSpot claim() {
+        AtomicLongArray summary = this.summary, words = this.words;
+        ParkingSpot[] spots = this.spots;
+        for (int s = 0; s < summary.length(); s++) {
+            long hint;
+            while ((hint = summary.get(s)) != 0) {
+                int w = (s << 6) + Long.numberOfTrailingZeros(hint);
+                long word;
+                while ((word = words.get(w)) != 0) {
+                    long bit = word & -word;
+                    if (words.compareAndSet(w, word, word & ~bit)) {
+                        free.decrement();
+                        ParkingSpot spot = spots[(w << 6) + Long.numberOfTrailingZeros(bit)];
+                        spot.markClaimed();
+                        return spot;
+                    }
+                }
+                clearBit(summary, s, w & 63);
+                // a release may have refilled the word while its hint was being cleared
+                if (words.get(w) != 0) setBit(summary, s, w & 63);
+            }
+        }
+        return null;
+    }
+
+    // A spot that was free when looked at; the caller still has to reserve() it.
+    public ParkingSpot peekFree() {
+        AtomicLongArray summary = this.summary, words = this.words;
+        ParkingSpot[] spots = this.spots;
+        for (int s = 0; s < summary.length(); s++) {
+            long hint;
+            while ((hint = summary.get(s)) != 0) {
+                int w = (s << 6) + Long.numberOfTrailingZeros(hint);
+                long word = words.get(w);
+                if (word != 0) {
+                    int slot = (w << 6) + Long.numberOfTrailingZeros(word);
+                    if (slot < spots.length) return spots[slot];
+                }
+                clearBit(summary, s, w & 63);
+                // a release may have refilled the word while its hint was being cleared
+                if (words.get(w) != 0) setBit(summary, s, w & 63);
+            }
+        }
+        return null;
+    }
+
+    // True if this call set the bit.
+    private static boolean setBit(AtomicLongArray array, int index, int bit) {
+        long mask = 1L << bit;
+        long current;
+        while (((current = array.get(index)) & mask) == 0) {
+            if (array.compareAndSet(index, current, current | mask)) return true;
+        }
+        return false;
+    }
+
+    private static void clearBit(AtomicLongArray array, int index, int bit) {
+        long mask = 1L << bit;
+        long current;
+        while (((current = array.get(index)) & mask) != 0 && !array.compareAndSet(index, current, current & ~mask)) { }
     }
 }
 
 class ParkingFloor {
     String id;
+    int level; // floors away from the exit; 0 is the exit level
+    int position = -1; // index in the lot's floor order, set when the floor is added
     Map<String, ParkingSpot> parkingSpots = new ConcurrentHashMap<>();
+    private final Map<ParkingType, FreeSpotIndex> freeSpots = new EnumMap<>(ParkingType.class);
 
     public ParkingFloor() {
+        this(0);
+    }
+
+    public ParkingFloor(int level) {
         this.id = "PF_" + UUID.randomUUID().toString();
+        this.level = level;
+        for (ParkingType type : ParkingType.values()) freeSpots.put(type, new FreeSpotIndex());
     }
 
     public void addParkingSpot(ParkingSpot parkingSpot) {
         parkingSpots.put(parkingSpot.id, parkingSpot);
+        synchronized (parkingSpot) {
+            FreeSpotIndex index = freeSpots.get(parkingSpot.parkingType);
+            parkingSpot.slot = index.add(parkingSpot);
+            parkingSpot.freeIndex = index;
+            parkingSpot.floor = this;
+        }
     }
 
-    // Returns the first available compatible spot
+    // Returns an available compatible spot, from the free-spot index rather than a scan
     public Optional<ParkingSpot> getAvailableSpot(Vehicle vehicle) {
-        return parkingSpots.values().stream()
-                .filter(spot -> !spot.occupied && isCompatible(spot.parkingType, vehicle.vehicleType))
-                .findFirst();
+        return Optional.ofNullable(freeSpots.get(spotTypeFor(vehicle.vehicleType)).peekFree());
+    }
+
+    public int freeSpots(ParkingType type) {
+        return freeSpots.get(type).freeCount();
+    }
+
+    public int capacity(ParkingType type) {
+        return freeSpots.get(type).capacity();
+    }
+
+    // The slot-th spot of the type added to this floor, or null.
+    public ParkingSpot spotAt(ParkingType type, int slot) {
+        return freeSpots.get(type).spotAt(slot);
     }
 
-    private boolean isCompatible(ParkingType spotType, VehicleType vehicleType) {
-        return (spotType == ParkingType.LARGE && vehicleType == VehicleType.TRUCK) ||
-                (spotType == ParkingType.MEDIUM && vehicleType == VehicleType.CAR) ||
-                (spotType == ParkingType.SMALL && vehicleType == VehicleType.BIKE);
+    // Finds and reserves a compatible spot atomically; null only when the floor has none left.
+    public ParkingSpot claimSpot(Vehicle vehicle) {
+        return freeSpots.get(spotTypeFor(vehicle.vehicleType)).claim();
+    }
+
+    static ParkingType spotTypeFor(VehicleType vehicleType) {
+        switch (vehicleType) {
+            case TRUCK: return ParkingType.LARGE;
+            case CAR: return ParkingType.MEDIUM;
+            case BIKE: return ParkingType.SMALL;
+            default: throw new IllegalArgumentException("Unknown vehicle type " + vehicleType);
+        }
     }
 }
 
@@ -107,9 +330,14 @@ class HourlyCostStrategy implements CostStrategy {
 class ParkingLot {
     private static volatile ParkingLot instance;
     private final Map<String, ParkingFloor> parkingFloors = new ConcurrentHashMap<>();
+    // the same floors in the order they were added, for strategies that care about order
+    private final List<ParkingFloor> floorOrder = new CopyOnWriteArrayList<>();
     private final Map<String, Ticket> activeTickets = new ConcurrentHashMap<>();
     @Setter
     private AssignFloorStrategy assignFloorStrategy;
+    // when set, every park and unpark is journaled before it returns
+    @Setter
+    private volatile TicketJournal ticketJournal;
     private CostStrategy costStrategy = new HourlyCostStrategy();
 
     private ParkingLot() {}
@@ -124,42 +352,132 @@ class ParkingLot {
     }
 
     public void addParkingFloor(ParkingFloor parkingFloor) {
-        parkingFloors.put(parkingFloor.id, parkingFloor);
+        if (parkingFloors.putIfAbsent(parkingFloor.id, parkingFloor) == null) {
+            synchronized (floorOrder) {
+                parkingFloor.position = floorOrder.size();
+                floorOrder.add(parkingFloor);
+            }
+        }
     }
 
+    // In the order they were added; a read-only view, not a copy.
     public List<ParkingFloor> getParkingFloors() {
-        return new ArrayList<>(parkingFloors.values());
+        return Collections.unmodifiableList(floorOrder);
+    }
+
+    // Free spots per floor and type, read from the floors' counters without touching any spot, so
+    // display boards can poll it as often as they like.
+    public Availability getAvailability() {
+        return new Availability(floorOrder);
     }
 
     public Ticket parkVehicle(Vehicle vehicle) {
         ParkingFloor floor = assignFloorStrategy.assign(vehicle, this);
-        if (floor == null) {
+        ParkingSpot spot = floor == null ? null : floor.claimSpot(vehicle);
+        // other vehicles took the assigned floor's last spots after it was picked; any floor with room will do
+        if (spot == null) {
+            for (ParkingFloor other : floorOrder) {
+                if (other != floor && (spot = other.claimSpot(vehicle)) != null) break;
+            }
+        }
+        if (spot == null) {
             System.out.println("No space available for " + vehicle.vehicleType);
             return null;
         }
 
-        Optional<ParkingSpot> spotOpt = floor.getAvailableSpot(vehicle);
-        if (spotOpt.isPresent() && spotOpt.get().reserve()) {
-            Ticket ticket = new Ticket(vehicle, spotOpt.get());
-            activeTickets.put(ticket.id, ticket);
-            System.out.println("Parked " + vehicle.vehicleNo + " at spot " + spotOpt.get().id);
-            return ticket;
+        Ticket ticket = issueTicket(vehicle, spot);
+        System.out.println("Parked " + vehicle.vehicleNo + " at spot " + spot.id);
+        return ticket;
+    }
+
+    // Parks on the first of the given floors with room, without printing; null if none has room.
+    Ticket parkOn(Vehicle vehicle, List<ParkingFloor> floors) {
+        for (ParkingFloor floor : floors) {
+            ParkingSpot spot = floor.claimSpot(vehicle);
+            if (spot != null) return issueTicket(vehicle, spot);
         }
         return null;
     }
 
+    private Ticket issueTicket(Vehicle vehicle, ParkingSpot spot) {
+        Ticket ticket = new Ticket(vehicle, spot);
+        activeTickets.put(ticket.id, ticket);
+        TicketJournal journal = ticketJournal;
+        // journaled after the put, so a checkpoint that rotates the record away finds the ticket instead
+        if (journal != null) {
+            try {
+                journal.recordPark(ticket);
+            } catch (RuntimeException e) {
+                activeTickets.remove(ticket.id);
+                spot.release();
+                throw e;
+            }
+        }
+        return ticket;
+    }
+
+    Ticket getTicket(String ticketId) {
+        return activeTickets.get(ticketId);
+    }
+
+    // A read-only view of the open tickets, for the journal's snapshots.
+    Collection<Ticket> activeTickets() {
+        return Collections.unmodifiableCollection(activeTickets.values());
+    }
+
+    // Spot lookup for journal recovery, by the floor's position and the spot's slot.
+    ParkingSpot spotAt(int floorPosition, ParkingType type, int slot) {
+        ParkingSpot spot = floorPosition >= 0 && floorPosition < floorOrder.size()
+                ? floorOrder.get(floorPosition).spotAt(type, slot) : null;
+        if (spot == null)
+            throw new IllegalStateException("No " + type + " spot #" + slot + " on floor " + floorPosition
+                    + "; lay the floors out as they were before the restart");
+        return spot;
+    }
+
+    // Puts recovered tickets back and takes their spots.
+    void restoreTickets(Collection<Ticket> tickets) {
+        for (Ticket ticket : tickets) {
+            if (!ticket.spot.reserve())
+                throw new IllegalStateException("Spot " + ticket.spot.id + " is held by more than one recovered ticket");
+            activeTickets.put(ticket.id, ticket);
+        }
+    }
+
     // UNPARK FUNCTIONALITY
     public void unparkVehicle(String ticketId, PaymentStrategy paymentMethod) {
-        Ticket ticket = activeTickets.remove(ticketId);
+        Ticket ticket = checkOut(ticketId, paymentMethod);
         if (ticket == null) {
             System.out.println("Invalid Ticket ID");
             return;
         }
+        System.out.println("Vehicle " + ticket.vehicle.vehicleNo + " unparked from " + ticket.spot.id);
+    }
+
+    // Closes the ticket, takes payment and frees the spot, without printing; null for an unknown ticket.
+    Ticket checkOut(String ticketId, PaymentStrategy paymentMethod) {
+        Ticket ticket = activeTickets.remove(ticketId);
+        if (ticket == null) return null;
 
         int amount = costStrategy.calculateCost(ticket);
-        paymentMethod.pay(amount);
-        ticket.spot.release();
-        System.out.println("Vehicle " + ticket.vehicle.vehicleNo + " unparked from " + ticket.spot.id);
+        TicketJournal journal = ticketJournal;
+        // before payment and the release, so the next park on this spot is journaled after this
+        // unpark; if the journal refuses it, the car is still parked and the ticket goes back
+        if (journal != null) {
+            try {
+                journal.recordUnpark(ticket);
+            } catch (RuntimeException e) {
+                activeTickets.put(ticket.id, ticket);
+                throw e;
+            }
+        }
+        // the unpark is on record, so the spot is freed even if payment throws
+        try {
+            paymentMethod.pay(amount);
+        } finally {
+            ticket.spot.release();
+        }
+        return ticket;
     }
 }
 
@@ -172,14 +490,1379 @@ interface AssignFloorStrategy { ParkingFloor assign(Vehicle vehicle, ParkingLot
 class FarthestFloorAssign implements AssignFloorStrategy {
     @Override
     public ParkingFloor assign(Vehicle vehicle, ParkingLot parkingLot) {
+        ParkingType type = ParkingFloor.spotTypeFor(vehicle.vehicleType);
         List<ParkingFloor> floors = parkingLot.getParkingFloors();
         for (int i = floors.size() - 1; i >= 0; i--) {
-            if (floors.get(i).getAvailableSpot(vehicle).isPresent()) return floors.get(i);
+            if (floors.get(i).freeSpots(type) > 0) return floors.get(i);
+        }
+        return null;
+    }
+}
+
+// The strategies below only read the floors' free counters: O(floors), no spot is touched.
+
+// The floor with the largest share of its spots of this type still free, to spread cars out.
+class LeastLoadedFloorAssign implements AssignFloorStrategy {
+    @Override
+    public ParkingFloor assign(Vehicle vehicle, ParkingLot parkingLot) {
+        ParkingType type = ParkingFloor.spotTypeFor(vehicle.vehicleType);
+        ParkingFloor best = null;
+        double bestShare = 0;
+        for (ParkingFloor floor : parkingLot.getParkingFloors()) {
+            int free = floor.freeSpots(type);
+            if (free == 0) continue;
+            double share = (double) free / floor.capacity(type);
+            if (best == null || share > bestShare) {
+                best = floor;
+                bestShare = share;
+            }
+        }
+        return best;
+    }
+}
+
+// The floor with a free spot closest to the exit; the first one added wins a tie.
+class NearestToExitAssign implements AssignFloorStrategy {
+    @Override
+    public ParkingFloor assign(Vehicle vehicle, ParkingLot parkingLot) {
+        ParkingType type = ParkingFloor.spotTypeFor(vehicle.vehicleType);
+        ParkingFloor best = null;
+        for (ParkingFloor floor : parkingLot.getParkingFloors()) {
+            if (floor.freeSpots(type) > 0 && (best == null || floor.level < best.level)) best = floor;
+        }
+        return best;
+    }
+}
+
+// Fills floors in the order they were added, so the last floors stay empty (and can be closed)
+// for as long as possible.
+class FillFirstAssign implements AssignFloorStrategy {
+    @Override
+    public ParkingFloor assign(Vehicle vehicle, ParkingLot parkingLot) {
+        ParkingType type = ParkingFloor.spotTypeFor(vehicle.vehicleType);
+        for (ParkingFloor floor : parkingLot.getParkingFloors()) {
+            if (floor.freeSpots(type) > 0) return floor;
         }
         return null;
     }
 }
 
+// What a display board shows: free spots per floor and type at one moment.
+class Availability {
+    final List<String> floorIds = new ArrayList<>();
+    final int[][] free; // [floor][ParkingType.ordinal()]
+
+    Availability(List<ParkingFloor> floors) {
+        free = new int[floors.size()][ParkingType.values().length];
+        for (int f = 0; f < floors.size(); f++) {
+            floorIds.add(floors.get(f).id);
+            for (ParkingType type : ParkingType.values()) free[f][type.ordinal()] = floors.get(f).freeSpots(type);
+        }
+    }
+
+    public int totalFree(ParkingType type) {
+        int total = 0;
+        for (int[] floor : free) total += floor[type.ordinal()];
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (ParkingType type : ParkingType.values()) sb.append(type).append(' ').append(totalFree(type)).append("  ");
+        return sb.toString().trim();
+    }
+}
+
+// GATE EVENT PIPELINE
+enum GateEventType { ENTRY, EXIT }
+
+// One plate read at a gate. result completes with the issued ticket (ENTRY) or the closed one
+// (EXIT), or with null when the lot is full or the ticket is unknown.
+class GateEvent {
+    final GateEventType type;
+    final int gateId;
+    final Vehicle vehicle;
+    final String ticketId;
+    final PaymentStrategy payment;
+    final long capturedAtNanos = System.nanoTime();
+    final CompletableFuture<Ticket> result = new CompletableFuture<>();
+
+    private GateEvent(GateEventType type, int gateId, Vehicle vehicle, String ticketId, PaymentStrategy payment) {
+        this.type = type;
+        this.gateId = gateId;
+        this.vehicle = vehicle;
+        this.ticketId = ticketId;
+        this.payment = payment;
+    }
+
+    static GateEvent entry(int gateId, Vehicle vehicle) {
+        return new GateEvent(GateEventType.ENTRY, gateId, vehicle, null, null);
+    }
+
+    static GateEvent exit(int gateId, String ticketId, PaymentStrategy payment) {
+        return new GateEvent(GateEventType.EXIT, gateId, null, ticketId, payment);
+    }
+}
+
+// Bounded lock-free queue for many producers and one consumer (Vyukov's design): each slot has a
+// sequence number telling producers whether it is free for their lap and the consumer whether it
+// has been filled. offer fails instead of blocking when the queue is full.
+class MpscRingBuffer<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head; // only the consumer writes it
+
+    public MpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+        slots = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    public boolean offer(E e) {
+        while (true) {
+            long t = tail.get();
+            int i = (int) (t & mask);
+            long sequence = sequences.get(i);
+            if (sequence == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    slots.lazySet(i, e);
+                    sequences.set(i, t + 1);
+                    return true;
+                }
+            } else if (sequence < t) {
+                return false; // the consumer has not freed this slot from the previous lap: full
+            }
+        }
+    }
+
+    // Consumer only.
+    public E poll() {
+        long h = head;
+        int i = (int) (h & mask);
+        if (sequences.get(i) != h + 1) return null;
+        E e = slots.get(i);
+        slots.lazySet(i, null);
+        sequences.set(i, h + mask + 1);
+        head = h + 1;
+        return e;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
+
+// Gate events from any number of gates go through one bounded queue per floor group; each group
+// has a single worker thread, so pipeline traffic never contends with itself on a floor. The lot
+// does not reserve the floors for the pipeline: ParkingLot.parkVehicle can still claim spots there
+// directly, safely (claims are CAS on the free bitmap) but competing with the worker and moving
+// the counters route() reads. A worker drains up to batchSize events at a time and completes their
+// futures, so gates never wait on a lock and a busy group does not slow the others. Entries go to the group with the most free spots of the
+// vehicle's type (from the floors' counters), exits to the group that owns the ticket's spot.
+// A full queue fails the event's future with RejectedExecutionException: the gate retries or
+// shows "please wait", and the rejection is counted.
+class GateEventPipeline implements AutoCloseable {
+    private final ParkingLot lot;
+    private final Worker[] workers;
+    private final Map<ParkingFloor, Worker> workerOf = new HashMap<>();
+    private volatile boolean running = true;
+    // submits between their running check and their offer; workers wait these out before exiting
+    private final AtomicInteger submitting = new AtomicInteger();
+
+    public GateEventPipeline(ParkingLot lot, List<List<ParkingFloor>> floorGroups, int queueCapacity, int batchSize) {
+        this.lot = lot;
+        this.workers = new Worker[floorGroups.size()];
+        for (int g = 0; g < workers.length; g++) {
+            workers[g] = new Worker(g, floorGroups.get(g), queueCapacity, batchSize);
+            for (ParkingFloor floor : floorGroups.get(g)) workerOf.put(floor, workers[g]);
+        }
+        for (Worker worker : workers) worker.thread.start();
+    }
+
+    public CompletableFuture<Ticket> submit(GateEvent event) {
+        submitting.incrementAndGet();
+        try {
+            if (!running) {
+                event.result.completeExceptionally(new RejectedExecutionException("gate pipeline is closed"));
+                return event.result;
+            }
+            Worker worker = route(event);
+            if (worker == null) {
+                event.result.complete(null);
+            } else if (!worker.queue.offer(event)) {
+                worker.rejected.increment();
+                event.result.completeExceptionally(new RejectedExecutionException("floor group " + worker.group + " is backed up"));
+            } else if (worker.sleeping) {
+                LockSupport.unpark(worker.thread);
+            }
+            return event.result;
+        } finally {
+            submitting.decrementAndGet();
+        }
+    }
+
+    private Worker route(GateEvent event) {
+        if (event.type == GateEventType.EXIT) {
+            Ticket ticket = lot.getTicket(event.ticketId);
+            return ticket == null ? null : workerOf.get(ticket.spot.floor);
+        }
+        ParkingType type = ParkingFloor.spotTypeFor(event.vehicle.vehicleType);
+        Worker best = null;
+        int bestScore = Integer.MIN_VALUE;
+        for (Worker worker : workers) {
+            int free = 0;
+            for (ParkingFloor floor : worker.floors) free += floor.freeSpots(type);
+            if (free == 0) continue;
+            // entries already queued for a group will take some of its spots; this also spreads bursts
+            int score = free - worker.queue.size();
+            if (score > bestScore) {
+                best = worker;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    public List<PipelineStats> stats() {
+        List<PipelineStats> stats = new ArrayList<>();
+        for (Worker worker : workers) stats.add(worker.stats());
+        return stats;
+    }
+
+    // Stops accepting work, then waits for the workers to finish what was already queued. Events
+    // submitted during or after the close are completed with RejectedExecutionException.
+    @Override
+    public void close() {
+        running = false;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        final int group;
+        final List<ParkingFloor> floors;
+        final MpscRingBuffer<GateEvent> queue;
+        final GateEvent[] batch;
+        final Thread thread;
+        final LongAdder rejected = new LongAdder();
+        volatile boolean sleeping;
+        // written by the worker only
+        volatile long processed, batches, maxDepth;
+
+        Worker(int group, List<ParkingFloor> floors, int queueCapacity, int batchSize) {
+            this.group = group;
+            this.floors = new ArrayList<>(floors);
+            this.queue = new MpscRingBuffer<>(queueCapacity);
+            this.batch = new GateEvent[batchSize];
+            this.thread = new Thread(this, "gate-worker-" + group);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running || queue.size() > 0) {
+                int depth = queue.size();
+                int n = 0;
+                GateEvent event;
+                while (n < batch.length && (event = queue.poll()) != null) batch[n++] = event;
+                if (n == 0) {
+                    sleeping = true;
+                    if (running && queue.size() == 0) LockSupport.parkNanos(this, 1_000_000);
+                    sleeping = false;
+                    continue;
+                }
+                if (depth > maxDepth) maxDepth = depth;
+                for (int i = 0; i < n; i++) {
+                    event = batch[i];
+                    batch[i] = null;
+                    try {
+                        event.result.complete(event.type == GateEventType.ENTRY
+                                ? lot.parkOn(event.vehicle, floors)
+                                : lot.checkOut(event.ticketId, event.payment));
+                    } catch (RuntimeException e) {
+                        event.result.completeExceptionally(e);
+                    }
+                }
+                processed += n;
+                batches++;
+            }
+            // a submit that saw running just before close() may still be offering; once none is,
+            // nothing more can arrive, so refuse whatever slipped in after the last batch
+            while (submitting.get() > 0) Thread.yield();
+            GateEvent event;
+            while ((event = queue.poll()) != null) {
+                rejected.increment();
+                event.result.completeExceptionally(new RejectedExecutionException("gate pipeline is closed"));
+            }
+        }
+
+        PipelineStats stats() {
+            return new PipelineStats(group, queue.size(), queue.capacity(), maxDepth, processed, batches, rejected.sum());
+        }
+    }
+}
+
+class PipelineStats {
+    final int group;
+    final int depth;
+    final int capacity;
+    final long maxDepth;
+    final long processed;
+    final long batches;
+    final long rejected;
+
+    PipelineStats(int group, int depth, int capacity, long maxDepth, long processed, long batches, long rejected) {
+        this.group = group;
+        this.depth = depth;
+        this.capacity = capacity;
+        this.maxDepth = maxDepth;
+        this.processed = processed;
+        this.batches = batches;
+        this.rejected = rejected;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("group %d: depth %d/%d (max %d), %,d events in %,d batches (avg %.1f), %,d rejected",
+                group, depth, capacity, maxDepth, processed, batches, batches == 0 ? 0.0 : (double) processed / batches, rejected);
+    }
+}
+
+// Write-ahead journal of parks and unparks, so activeTickets and spot occupancy survive a restart.
+// Parking threads write fixed-size records straight into a memory-mapped journal, each at a slot
+// taken from a counter, and carry on; a committer thread forces the written pages to disk once per
+// commit interval, so one force covers every event since the last (group commit). With
+// waitForCommit, a park or unpark also waits for a force that started after its record was written.
+// The committer writes a compact snapshot of the active tickets, and starts a new journal
+// generation, whenever the current one reaches snapshotEvery records or checkpoint() is called.
+//
+// Files in dir: snapshot-<gen>.bin (written to a temp file, then atomically moved into place) and
+// journal-<gen>.log. Records are 128 bytes, so none straddles a page:
+//   [header: type, vehicle type, spot type, plate length][floor position][slot][start nanos]
+//   [start epoch second][ticket uuid][vehicle uuid][plate]
+// An unpark fills in only the header and the ticket uuid. The header is written last, with release
+// semantics, so a record cut off by a crash reads as zero and is skipped like an unused slot.
+class TicketJournal implements Closeable {
+    private static final int PARK = 1;
+    private static final int UNPARK = 2;
+    private static final int RECORD = 128;
+    private static final int PLATE_AT = 56;
+    static final int MAX_PLATE = RECORD - PLATE_AT;
+    private static final int CHUNK_RECORDS = 1 << 15;
+    private static final long CHUNK_BYTES = (long) CHUNK_RECORDS * RECORD;
+    private static final int SNAPSHOT_MAGIC = 0x544B5453;
+    private static final String TICKET_PREFIX = "TICK_";
+    private static final String VEHICLE_PREFIX = "V_";
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+    private static final VehicleType[] VEHICLE_TYPES = VehicleType.values();
+    private static final ParkingType[] PARKING_TYPES = ParkingType.values();
+    private static final VarHandle HEADER = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    // One journal file, mapped a chunk at a time.
+    private static final class Segment {
+        final long generation;
+        final FileChannel channel;
+        final AtomicLong next = new AtomicLong();
+        final AtomicLong written = new AtomicLong(); // slots whose writer is done with them, or refused them
+        final AtomicIntegerArray chunkWritten = new AtomicIntegerArray(1 << 16); // the same, per chunk
+        final AtomicReferenceArray<MappedByteBuffer> chunks = new AtomicReferenceArray<>(1 << 16);
+        // committer only: records reserved when the last force ran, whether all of them had been
+        // written by then, and the first chunk that may still hold a record no force has covered
+        long forcedTo;
+        boolean settled;
+        int openChunk;
+        private boolean retired;
+
+        Segment(Path file, long generation) throws IOException {
+            this.generation = generation;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void written(long n) {
+            written.incrementAndGet();
+            chunkWritten.incrementAndGet((int) (n / CHUNK_RECORDS));
+        }
+
+        // Null once a checkpoint has retired the segment.
+        MappedByteBuffer chunk(int c) throws IOException {
+            MappedByteBuffer mapped = chunks.get(c);
+            return mapped != null ? mapped : map(c);
+        }
+
+        private synchronized MappedByteBuffer map(int c) throws IOException {
+            if (retired) return null;
+            MappedByteBuffer mapped = chunks.get(c);
+            if (mapped == null) {
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, c * CHUNK_BYTES, CHUNK_BYTES);
+                chunks.set(c, mapped);
+            }
+            return mapped;
+        }
+
+        // Writers still holding a chunk may finish into it; the mapping outlives the channel.
+        synchronized void retire() throws IOException {
+            retired = true;
+            channel.close();
+        }
+    }
+
+    private final Path dir;
+    private final ParkingLot lot;
+    private final long commitNanos;
+    private final boolean waitForCommit;
+    private final long snapshotEvery;
+    private final Thread committer;
+    private volatile Segment segment;
+    private volatile IOException failure;
+    private volatile boolean stopped;
+    private volatile boolean closed; // set by the committer before its last force; refuses new records
+
+    // guarded by commitLock
+    private final Object commitLock = new Object();
+    private long commitsStarted, commitsDone;
+    private long checkpointsRequested, checkpointsDone;
+    private int waiting;
+    private boolean closing;
+
+    public TicketJournal(Path dir, ParkingLot lot) throws IOException {
+        this(dir, lot, Duration.ofMillis(2), false, 1 << 20);
+    }
+
+    public TicketJournal(Path dir, ParkingLot lot, Duration commitInterval, boolean waitForCommit, long snapshotEvery) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.lot = lot;
+        this.commitNanos = commitInterval.toNanos();
+        this.waitForCommit = waitForCommit;
+        this.snapshotEvery = snapshotEvery;
+        // never append to a journal that may end in a torn record; start the next generation
+        long generation = Math.max(latest("snapshot-"), latest("journal-")) + 1;
+        this.segment = new Segment(dir.resolve("journal-" + generation + ".log"), generation);
+        this.committer = new Thread(this::commitLoop, "ticket-journal-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    // Called by the lot once the ticket is in activeTickets, so a checkpoint that rotates this
+    // record's journal away finds the ticket in its snapshot instead.
+    void recordPark(Ticket ticket) {
+        byte[] plate = plate(ticket.vehicle);
+        UUID ticketId = uuid(ticket.id, TICKET_PREFIX);
+        UUID vehicleId = uuid(ticket.vehicle.id, VEHICLE_PREFIX);
+        Segment segment = this.segment;
+        long n = segment.next.getAndIncrement();
+        try {
+            MappedByteBuffer chunk = chunk(segment, n);
+            if (chunk != null) {
+                int at = (int) (n % CHUNK_RECORDS) * RECORD;
+                int header = writePark(chunk, at, ticket, ticketId, vehicleId, plate);
+                HEADER.setRelease(chunk, at, header);
+            }
+        } finally {
+            segment.written(n);
+        }
+        awaitCommit();
+    }
+
+    // Called by the lot once the ticket has left activeTickets and before its spot is released, so
+    // the next park on the spot always lands after this record.
+    void recordUnpark(Ticket ticket) {
+        UUID ticketId = uuid(ticket.id, TICKET_PREFIX);
+        Segment segment = this.segment;
+        long n = segment.next.getAndIncrement();
+        try {
+            MappedByteBuffer chunk = chunk(segment, n);
+            if (chunk != null) {
+                int at = (int) (n % CHUNK_RECORDS) * RECORD;
+                chunk.putLong(at + 24, ticketId.getMostSignificantBits()).putLong(at + 32, ticketId.getLeastSignificantBits());
+                HEADER.setRelease(chunk, at, UNPARK << 24);
+            }
+        } finally {
+            segment.written(n);
+        }
+        awaitCommit();
+    }
+
+    // Null if a checkpoint retired the segment after the caller picked it: the snapshot it wrote
+    // already reflects the event. Checked after the slot is reserved, so the committer, which sets
+    // closed and then waits for every reserved slot, never misses a writer that got past it.
+    private MappedByteBuffer chunk(Segment segment, long n) {
+        if (failure != null) throw new UncheckedIOException("Ticket journal failed", failure);
+        if (closed || stopped) throw new IllegalStateException("Ticket journal is closed");
+        try {
+            return segment.chunk((int) (n / CHUNK_RECORDS));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void awaitCommit() {
+        if (!waitForCommit) return;
+        synchronized (commitLock) {
+            long target = commitsStarted + 1;
+            waiting++;
+            commitLock.notifyAll();
+            try {
+                while (commitsDone < target) {
+                    if (failure != null) throw new UncheckedIOException("Ticket journal failed", failure);
+                    if (stopped) throw new IllegalStateException("Ticket journal is closed");
+                    commitLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the ticket journal", e);
+            } finally {
+                waiting--;
+            }
+        }
+    }
+
+    // Loads the newest snapshot and replays the journals after it into the lot, whose floors must
+    // already be laid out as they were before the restart. Call before setTicketJournal and before
+    // any parking. Returns the number of tickets restored.
+    public int recover() throws IOException {
+        List<MappedByteBuffer> windows = new ArrayList<>();
+        long snapshotGeneration = latest("snapshot-");
+        long records = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.{bin,log}")) {
+            for (Path file : files) records += Files.size(file) / RECORD;
+        }
+        // sized for every record being a different open ticket, so replay never rehashes
+        OpenTickets open = new OpenTickets(records);
+        if (snapshotGeneration >= 0) {
+            try (FileChannel in = FileChannel.open(dir.resolve("snapshot-" + snapshotGeneration + ".bin"), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                in.read(header, 0);
+                if (header.getInt(0) != SNAPSHOT_MAGIC || header.getInt(4) != RECORD)
+                    throw new IOException("Not a ticket snapshot: generation " + snapshotGeneration);
+                replay(in, 8, windows, open);
+            }
+        }
+        for (long gen = Math.max(snapshotGeneration, 0); gen < segment.generation; gen++) {
+            Path journal = dir.resolve("journal-" + gen + ".log");
+            if (!Files.exists(journal)) continue;
+            try (FileChannel in = FileChannel.open(journal, StandardOpenOption.READ)) {
+                replay(in, 0, windows, open);
+            }
+        }
+        // decoded in file order, so the mapped pages are read front to back
+        long[] locations = open.locations();
+        Arrays.sort(locations);
+        List<Ticket> tickets = new ArrayList<>(locations.length);
+        for (long location : locations) tickets.add(readPark(windows.get((int) (location >>> 32)), (int) location));
+        lot.restoreTickets(tickets);
+        return tickets.size();
+    }
+
+    // Applies records in file order, noting only where each open ticket's park record is. A park
+    // already noted (it was in the snapshot too) just moves the note, and an unpark of a ticket not
+    // noted is a no-op, so the overlap between a snapshot and the journal written while it was being
+    // copied is harmless.
+    private static void replay(FileChannel in, long from, List<MappedByteBuffer> windows, OpenTickets open) throws IOException {
+        long size = in.size();
+        for (long base = from; base + RECORD <= size; base += CHUNK_BYTES) {
+            MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, base, Math.min(CHUNK_BYTES, size - base));
+            long windowIndex = windows.size();
+            windows.add(window);
+            for (int at = 0; at + RECORD <= window.limit(); at += RECORD) {
+                int type = window.getInt(at) >>> 24;
+                if (type == 0) continue;
+                long hi = window.getLong(at + 24), lo = window.getLong(at + 32);
+                if (type == PARK) open.put(hi, lo, windowIndex << 32 | at);
+                else if (type == UNPARK) open.remove(hi, lo);
+                else throw new IOException("Corrupt ticket journal record at offset " + (base + at));
+            }
+        }
+    }
+
+    private Ticket readPark(ByteBuffer buffer, int at) {
+        int header = buffer.getInt(at);
+        byte[] plate = new byte[header & 0xFF];
+        buffer.get(at + PLATE_AT, plate);
+        Vehicle vehicle = new Vehicle(id(VEHICLE_PREFIX, buffer.getLong(at + 40), buffer.getLong(at + 48)),
+                new String(plate, StandardCharsets.UTF_8), VEHICLE_TYPES[header >>> 16 & 0xFF]);
+        ParkingSpot spot = lot.spotAt(buffer.getInt(at + 4), PARKING_TYPES[header >>> 8 & 0xFF], buffer.getInt(at + 8));
+        LocalDateTime start = LocalDateTime.ofEpochSecond(buffer.getLong(at + 16), buffer.getInt(at + 12), ZoneOffset.UTC);
+        return new Ticket(id(TICKET_PREFIX, buffer.getLong(at + 24), buffer.getLong(at + 32)), start, vehicle, spot);
+    }
+
+    // prefix + new UUID(hi, lo), formatted straight into one byte array.
+    private static String id(String prefix, long hi, long lo) {
+        byte[] id = new byte[prefix.length() + 36];
+        for (int i = 0; i < prefix.length(); i++) id[i] = (byte) prefix.charAt(i);
+        int at = prefix.length();
+        at = hex(id, at, hi >>> 32, 8);
+        id[at++] = '-';
+        at = hex(id, at, hi >>> 16, 4);
+        id[at++] = '-';
+        at = hex(id, at, hi, 4);
+        id[at++] = '-';
+        at = hex(id, at, lo >>> 48, 4);
+        id[at++] = '-';
+        hex(id, at, lo, 12);
+        return new String(id, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int hex(byte[] out, int at, long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--, value >>>= 4) out[at + i] = HEX_DIGITS[(int) value & 0xF];
+        return at + digits;
+    }
+
+    // Ticket uuid -> location of its latest park record, open-addressed over one primitive array
+    // (uuid high, uuid low, location + 1; 0 marks an empty slot) so replay allocates nothing per
+    // record and a probe touches one cache line. Removal shifts later entries of the probe run back
+    // into the hole instead of leaving tombstones.
+    private static final class OpenTickets {
+        private long[] slots;
+        private int size;
+
+        OpenTickets(long expected) {
+            slots = new long[3 * Math.max(1 << 16, Integer.highestOneBit((int) Math.min(1 << 28, expected * 3 / 2)) << 1)];
+        }
+
+        void put(long hi, long lo, long location) {
+            if (size * 3 >= slots.length / 3 * 2) grow();
+            int i = find(hi, lo);
+            if (slots[i + 2] == 0) {
+                slots[i] = hi;
+                slots[i + 1] = lo;
+                size++;
+            }
+            slots[i + 2] = location + 1;
+        }
+
+        void remove(long hi, long lo) {
+            int i = find(hi, lo);
+            if (slots[i + 2] == 0) return;
+            int capacity = slots.length / 3;
+            for (int j = next(i); slots[j + 2] != 0; j = next(j)) {
+                // j may fill the hole unless its home slot lies after the hole, up to j
+                int home = home(slots[j], slots[j + 1]);
+                if (Math.floorMod(j / 3 - home, capacity) >= Math.floorMod(j / 3 - i / 3, capacity)) {
+                    System.arraycopy(slots, j, slots, i, 3);
+                    i = j;
+                }
+            }
+            slots[i + 2] = 0;
+            size--;
+        }
+
+        long[] locations() {
+            long[] locations = new long[size];
+            for (int i = 2, n = 0; i < slots.length; i += 3) {
+                if (slots[i] != 0) locations[n++] = slots[i] - 1;
+            }
+            return locations;
+        }
+
+        private int find(long hi, long lo) {
+            int i = home(hi, lo) * 3;
+            while (slots[i + 2] != 0 && (slots[i] != hi || slots[i + 1] != lo)) i = next(i);
+            return i;
+        }
+
+        private int next(int i) {
+            return i + 3 == slots.length ? 0 : i + 3;
+        }
+
+        private int home(long hi, long lo) {
+            return (int) (((hi ^ lo) * 0x9E3779B97F4A7C15L) >>> 40) & (slots.length / 3 - 1);
+        }
+
+        private void grow() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            for (int i = 0; i < old.length; i += 3) {
+                if (old[i + 2] == 0) continue;
+                System.arraycopy(old, i, slots, find(old[i], old[i + 1]), 3);
+            }
+        }
+    }
+
+    // Has the committer write a snapshot and start a new generation, and waits for it to finish.
+    public void checkpoint() throws IOException {
+        synchronized (commitLock) {
+            long target = ++checkpointsRequested;
+            commitLock.notifyAll();
+            try {
+                while (checkpointsDone < target) {
+                    if (failure != null) throw failure;
+                    if (stopped) throw new IllegalStateException("Ticket journal is closed");
+                    commitLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a checkpoint", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (commitLock) {
+            closing = true;
+            commitLock.notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) throw failure;
+    }
+
+    // Forces, rotations and snapshots all happen on this thread, so a force that starts after a
+    // record was written covers it: either the record's journal is still current and gets forced,
+    // or a checkpoint has already rotated it away and its snapshot is on disk.
+    private void commitLoop() {
+        try {
+            while (true) {
+                long round, checkpoint;
+                boolean waiters, stop;
+                synchronized (commitLock) {
+                    if (waiting == 0 && !closing && checkpointsRequested == checkpointsDone)
+                        TimeUnit.NANOSECONDS.timedWait(commitLock, commitNanos);
+                    round = ++commitsStarted;
+                    checkpoint = checkpointsRequested;
+                    waiters = waiting > 0;
+                    stop = closing;
+                }
+                if (!stop && (checkpoint > checkpointsDone || segment.next.get() >= snapshotEvery)) {
+                    writeCheckpoint();
+                    synchronized (commitLock) {
+                        checkpointsDone = Math.max(checkpointsDone, checkpoint);
+                    }
+                }
+                Segment current = segment;
+                long end = 0;
+                if (stop) {
+                    // refuse new records and let writers already in a chunk finish, so nothing
+                    // touches the mapping once the file is truncated
+                    closed = true;
+                    while (current.written.get() < (end = current.next.get())) Thread.yield();
+                }
+                force(current, waiters || stop);
+                if (stop) {
+                    // slots reserved after closed was set were refused and stay zero
+                    current.channel.truncate(end * RECORD);
+                    current.channel.close();
+                    if (end == 0) Files.delete(dir.resolve("journal-" + current.generation + ".log"));
+                } else {
+                    premap(current);
+                }
+                synchronized (commitLock) {
+                    commitsDone = round;
+                    commitLock.notifyAll();
+                }
+                if (stop) return;
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped = true;
+            synchronized (commitLock) {
+                commitLock.notifyAll();
+            }
+        }
+    }
+
+    // Forces every chunk from the first one that may hold a record no force has covered. A chunk
+    // whose slots were all written before a force began is done with after it. With nobody waiting,
+    // an interval skips the force only if nothing was reserved since the last one and every record
+    // had been written by then; one that ran while writers were mid-record is repeated.
+    private static void force(Segment segment, boolean always) {
+        long done = segment.written.get(); // read before end: done == end means nothing was in flight
+        long end = segment.next.get();
+        if (end == 0 || (end == segment.forcedTo && segment.settled && !always)) return;
+        int last = (int) ((end - 1) / CHUNK_RECORDS);
+        int open = segment.openChunk;
+        while (open < last && segment.chunkWritten.get(open) == CHUNK_RECORDS) open++;
+        for (int c = segment.openChunk; c <= last; c++) {
+            MappedByteBuffer chunk = segment.chunks.get(c);
+            if (chunk != null) chunk.force();
+        }
+        segment.openChunk = open;
+        segment.forcedTo = end;
+        segment.settled = done == end;
+    }
+
+    // Maps the chunk after the current one once it is half full, so parks rarely pay for a map.
+    private static void premap(Segment segment) throws IOException {
+        long end = segment.next.get();
+        int c = (int) (end / CHUNK_RECORDS);
+        segment.chunk(c);
+        if (end % CHUNK_RECORDS >= CHUNK_RECORDS / 2) segment.chunk(c + 1);
+    }
+
+    // Rotates to a new generation, then copies the active tickets into a snapshot that replaces every
+    // older file. An event recorded in the old journal changed activeTickets before the rotation, so
+    // the copy reflects it; events racing with the copy are in the new journal as well.
+    private void writeCheckpoint() throws IOException {
+        Segment old = segment;
+        long generation = old.generation + 1;
+        segment = new Segment(dir.resolve("journal-" + generation + ".log"), generation);
+        old.retire();
+        Path tmp = dir.resolve("snapshot-" + generation + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD * 1024);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(RECORD);
+            for (Ticket ticket : lot.activeTickets()) {
+                if (buffer.remaining() < RECORD) drain(out, buffer);
+                int at = buffer.position();
+                buffer.putInt(at, writePark(buffer, at, ticket, uuid(ticket.id, TICKET_PREFIX),
+                        uuid(ticket.vehicle.id, VEHICLE_PREFIX), plate(ticket.vehicle)));
+                buffer.position(at + RECORD);
+            }
+            drain(out, buffer);
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve("snapshot-" + generation + ".bin"), StandardCopyOption.ATOMIC_MOVE);
+        deleteBefore(generation);
+    }
+
+    // One directory listing, however many generations came before.
+    private void deleteBefore(long generation) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "{snapshot,journal}-*.{bin,log}")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (Long.parseLong(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.'))) < generation)
+                    Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) out.write(buffer);
+        buffer.clear();
+    }
+
+    // Writes everything but the header and returns the header.
+    private static int writePark(ByteBuffer buffer, int at, Ticket ticket, UUID ticketId, UUID vehicleId, byte[] plate) {
+        ParkingSpot spot = ticket.spot;
+        buffer.putInt(at + 4, spot.floor.position)
+                .putInt(at + 8, spot.slot)
+                .putInt(at + 12, ticket.startTime.getNano())
+                .putLong(at + 16, ticket.startTime.toEpochSecond(ZoneOffset.UTC))
+                .putLong(at + 24, ticketId.getMostSignificantBits())
+                .putLong(at + 32, ticketId.getLeastSignificantBits())
+                .putLong(at + 40, vehicleId.getMostSignificantBits())
+                .putLong(at + 48, vehicleId.getLeastSignificantBits())
+                .put(at + PLATE_AT, plate);
+        return PARK << 24 | ticket.vehicle.vehicleType.ordinal() << 16 | spot.parkingType.ordinal() << 8 | plate.length;
+    }
+
+    private static byte[] plate(Vehicle vehicle) {
+        byte[] plate = vehicle.vehicleNo.getBytes(StandardCharsets.UTF_8);
+        if (plate.length > MAX_PLATE)
+            throw new IllegalArgumentException("Vehicle number longer than " + MAX_PLATE + " bytes: " + vehicle.vehicleNo);
+        return plate;
+    }
+
+    private static UUID uuid(String id, String prefix) {
+        return UUID.fromString(id.substring(prefix.length()));
+    }
+
+    private long latest(String prefix) throws IOException {
+        long latest = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".bin") && !name.endsWith(".log")) continue;
+                latest = Math.max(latest, Long.parseLong(name.substring(prefix.length(), name.lastIndexOf('.'))));
+            }
+        }
+        return latest;
+    }
+}
+
+// Parks/sec on one 5,000-spot floor: the free-spot index against the stream scan it replaced.
+// "fill" parks cars into an empty floor until it is full; "churn" holds the floor at 95% and
+// alternates a random unpark with a park.
+// Run: java -cp <out> TargetedPractice.ParkingLot.ParkingIndexBenchmark [spots] [churnOps]
+class ParkingIndexBenchmark {
+    public static void main(String[] args) {
+        int spots = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int churnOps = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        Vehicle car = VehicleFactory.getVehicle("KA-01-0000", VehicleType.CAR);
+
+        System.out.printf("%-8s %-6s %15s%n", "lookup", "phase", "parks/sec");
+        for (int round = 0; round < 2; round++) {
+            for (boolean indexed : new boolean[]{false, true}) {
+                ParkingFloor floor = new ParkingFloor();
+                List<ParkingSpot> all = new ArrayList<>();
+                for (int i = 0; i < spots; i++) {
+                    ParkingSpot spot = new ParkingSpot(i % 10 == 0 ? ParkingType.LARGE : i % 3 == 0 ? ParkingType.SMALL : ParkingType.MEDIUM);
+                    floor.addParkingSpot(spot);
+                    if (spot.parkingType == ParkingType.MEDIUM) all.add(spot);
+                }
+
+                long start = System.nanoTime();
+                int parked = 0;
+                while (park(floor, car, indexed) != null) parked++;
+                report(indexed, "fill", parked, System.nanoTime() - start);
+
+                Random random = new Random(3);
+                for (int i = 0; i < all.size() / 20; i++) all.get(random.nextInt(all.size())).release();
+                start = System.nanoTime();
+                for (int i = 0; i < churnOps; i++) {
+                    all.get(random.nextInt(all.size())).release();
+                    park(floor, car, indexed);
+                }
+                report(indexed, "churn", churnOps, System.nanoTime() - start);
+            }
+        }
+    }
+
+    static ParkingSpot park(ParkingFloor floor, Vehicle vehicle, boolean indexed) {
+        while (true) {
+            Optional<ParkingSpot> spot = indexed ? floor.getAvailableSpot(vehicle) : scan(floor, vehicle);
+            if (spot.isEmpty()) return null;
+            if (spot.get().reserve()) return spot.get();
+        }
+    }
+
+    // the lookup getAvailableSpot used to do
+    static Optional<ParkingSpot> scan(ParkingFloor floor, Vehicle vehicle) {
+        ParkingType type = ParkingFloor.spotTypeFor(vehicle.vehicleType);
+        return floor.parkingSpots.values().stream()
+                .filter(spot -> !spot.occupied && spot.parkingType == type)
+                .findFirst();
+    }
+
+    static void report(boolean indexed, String phase, int parks, long nanos) {
+        System.out.printf("%-8s %-6s %,15.0f%n", indexed ? "index" : "scan", phase, parks * 1e9 / nanos);
+    }
+}
+
+// 64 threads against ParkingLot.parkVehicle. Storm: exactly as many cars as there are car spots,
+// so every park must succeed, no spot may be handed out twice, and one car more must be refused.
+// Churn: with the lot nearly full, each thread parks and unparks its own car repeatedly; every park
+// must still succeed, and a spot must never belong to two live tickets. Throws on any violation.
+// Run: java -cp <out> TargetedPractice.ParkingLot.ParkStormStressTest [threads] [churnRounds]
+class ParkStormStressTest {
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int churnRounds = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+        int floors = 4, carSpotsPerFloor = 500;
+
+        ParkingLot lot = ParkingLot.getInstance();
+        lot.setAssignFloorStrategy(new FarthestFloorAssign());
+        for (int f = 0; f < floors; f++) {
+            ParkingFloor floor = new ParkingFloor();
+            for (int i = 0; i < carSpotsPerFloor; i++) floor.addParkingSpot(new ParkingSpot(ParkingType.MEDIUM));
+            floor.addParkingSpot(new ParkingSpot(ParkingType.SMALL));
+            lot.addParkingFloor(floor);
+        }
+        int capacity = floors * carSpotsPerFloor;
+        PrintStream out = System.out;
+        // parkVehicle reports every car on stdout
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Map<String, Ticket> owners = new ConcurrentHashMap<>();
+            AtomicInteger refused = new AtomicInteger();
+            AtomicInteger duplicates = new AtomicInteger();
+            run(threads, t -> {
+                for (int i = t; i < capacity; i += threads) {
+                    Ticket ticket = lot.parkVehicle(VehicleFactory.getVehicle("STORM-" + i, VehicleType.CAR));
+                    if (ticket == null) refused.incrementAndGet();
+                    else if (owners.putIfAbsent(ticket.spot.id, ticket) != null) duplicates.incrementAndGet();
+                }
+            });
+            check(refused.get() == 0, refused.get() + " of " + capacity + " parks refused with spots free");
+            check(duplicates.get() == 0, duplicates.get() + " spots handed out twice");
+            check(owners.size() == capacity, owners.size() + " distinct spots for " + capacity + " cars");
+            check(lot.parkVehicle(VehicleFactory.getVehicle("ONE-MORE", VehicleType.CAR)) == null, "parked past capacity");
+            out.printf("storm: %d threads parked %d cars into %d spots, 0 refused, 0 duplicates%n", threads, capacity, capacity);
+
+            // free one spot per thread, so there is always room for each thread's own car
+            List<Ticket> parked = new ArrayList<>(owners.values());
+            for (int i = 0; i < threads; i++) {
+                owners.remove(parked.get(i).spot.id);
+                lot.unparkVehicle(parked.get(i).id, new Cash());
+            }
+            run(threads, t -> {
+                for (int round = 0; round < churnRounds; round++) {
+                    Ticket ticket = lot.parkVehicle(VehicleFactory.getVehicle("CHURN-" + t, VehicleType.CAR));
+                    if (ticket == null) {
+                        refused.incrementAndGet();
+                        continue;
+                    }
+                    if (owners.putIfAbsent(ticket.spot.id, ticket) != null) duplicates.incrementAndGet();
+                    owners.remove(ticket.spot.id, ticket);
+                    lot.unparkVehicle(ticket.id, new Cash());
+                }
+            });
+            check(refused.get() == 0, refused.get() + " churn parks refused with spots free");
+            check(duplicates.get() == 0, duplicates.get() + " spots held by two tickets at once");
+            out.printf("churn: %d threads x %d park/unpark rounds, 0 refused, 0 duplicates%n", threads, churnRounds);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    static void run(int threads, java.util.function.IntConsumer work) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                work.accept(id);
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+    }
+
+    static void check(boolean condition, String failure) {
+        if (!condition) throw new IllegalStateException(failure);
+    }
+}
+
+// Park latency while display boards poll getAvailability(): 8 threads churn park/unpark on a
+// 4-floor lot, first with no board, then with one board polling 1,000 times a second and one
+// polling as fast as it can. Also checks the counters agree with the spots once parking stops.
+// Run: java -cp <out> TargetedPractice.ParkingLot.AvailabilityPollingBenchmark [parksPerThread]
+class AvailabilityPollingBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int parksPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = 8;
+        ParkingLot lot = ParkingLot.getInstance();
+        lot.setAssignFloorStrategy(new LeastLoadedFloorAssign());
+        for (int f = 0; f < 4; f++) {
+            ParkingFloor floor = new ParkingFloor(f);
+            for (int i = 0; i < 1_000; i++) floor.addParkingSpot(new ParkingSpot(i % 4 == 0 ? ParkingType.SMALL : ParkingType.MEDIUM));
+            lot.addParkingFloor(floor);
+        }
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            out.printf("%-22s %12s %10s %10s %10s%n", "boards", "polls/s", "p50 us", "p99 us", "p99.9 us");
+            for (int round = 0; round < 2; round++) {
+                for (long pollNanos : new long[]{-1, 1_000_000, 0}) {
+                    AtomicBoolean stop = new AtomicBoolean();
+                    AtomicLong polls = new AtomicLong();
+                    Thread board = new Thread(() -> {
+                        long next = System.nanoTime();
+                        while (!stop.get()) {
+                            if (lot.getAvailability().totalFree(ParkingType.MEDIUM) < 0) throw new IllegalStateException();
+                            polls.incrementAndGet();
+                            // a fixed schedule rather than a fixed pause, so oversleeping does not lower the rate
+                            next += pollNanos;
+                            if (pollNanos > 0) LockSupport.parkNanos(next - System.nanoTime());
+                        }
+                    });
+                    if (pollNanos >= 0) board.start();
+
+                    long[][] latencies = new long[threads][parksPerThread];
+                    long start = System.nanoTime();
+                    ParkStormStressTest.run(threads, t -> {
+                        Vehicle car = VehicleFactory.getVehicle("BOARD-" + t, VehicleType.CAR);
+                        for (int i = 0; i < parksPerThread; i++) {
+                            long t0 = System.nanoTime();
+                            Ticket ticket = lot.parkVehicle(car);
+                            latencies[t][i] = System.nanoTime() - t0;
+                            lot.unparkVehicle(ticket.id, new Cash());
+                        }
+                    });
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    stop.set(true);
+                    if (pollNanos >= 0) board.join();
+
+                    long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+                    out.printf("%-22s %,12.0f %10.1f %10.1f %10.1f%n",
+                            pollNanos < 0 ? "none" : pollNanos == 0 ? "1 board, tight loop" : "1 board, 1,000/s",
+                            polls.get() / seconds, all[all.length / 2] / 1000.0,
+                            all[(int) (all.length * 0.99)] / 1000.0, all[(int) (all.length * 0.999)] / 1000.0);
+                }
+            }
+            for (ParkingFloor floor : lot.getParkingFloors()) {
+                for (ParkingType type : ParkingType.values()) {
+                    long free = floor.parkingSpots.values().stream().filter(s -> s.parkingType == type && !s.occupied).count();
+                    ParkStormStressTest.check(free == floor.freeSpots(type), "counter " + floor.freeSpots(type) + " != " + free + " free spots");
+                }
+            }
+            out.println("counters match spots: " + lot.getAvailability());
+        } finally {
+            System.setOut(out);
+        }
+    }
+}
+
+// 200 gates (100 entry, 100 exit) feeding a GateEventPipeline over 8 floors in 4 groups, driven by
+// 4 generator threads at a fixed total event rate. Exit gates check out cars parked earlier. Reports
+// end-to-end latency (plate read to future completed) after a one-second warm-up, and the
+// pipeline's queue and batch stats.
+// Run: java -cp <out> TargetedPractice.ParkingLot.GatePipelineLoadTest [seconds] [eventsPerSecond]
+class GatePipelineLoadTest {
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int gates = 200, generators = 4;
+
+        ParkingLot lot = ParkingLot.getInstance();
+        List<List<ParkingFloor>> groups = new ArrayList<>();
+        for (int g = 0; g < 4; g++) {
+            List<ParkingFloor> group = new ArrayList<>();
+            for (int f = 0; f < 2; f++) {
+                ParkingFloor floor = new ParkingFloor(g * 2 + f);
+                for (int i = 0; i < 1_000; i++) floor.addParkingSpot(new ParkingSpot(ParkingType.MEDIUM));
+                lot.addParkingFloor(floor);
+                group.add(floor);
+            }
+            groups.add(group);
+        }
+        Vehicle[] cars = new Vehicle[4_096];
+        for (int i = 0; i < cars.length; i++) cars[i] = VehicleFactory.getVehicle("GATE-" + i, VehicleType.CAR);
+        PaymentStrategy prepaid = amount -> { };
+
+        long[] latencies = new long[(int) Math.min(Integer.MAX_VALUE - 8, seconds * (long) rate * 2)];
+        AtomicInteger recorded = new AtomicInteger();
+        AtomicLong full = new AtomicLong(), rejected = new AtomicLong();
+        Queue<String> parked = new ConcurrentLinkedQueue<>();
+
+        try (GateEventPipeline pipeline = new GateEventPipeline(lot, groups, 1_024, 64)) {
+            long start = System.nanoTime(), end = start + seconds * 1_000_000_000L;
+            // the first second warms up the JIT and is left out of the latency figures
+            long measureFrom = start + 1_000_000_000L;
+            ParkStormStressTest.run(generators, t -> {
+                long interval = 1_000_000_000L * generators / rate, next = System.nanoTime();
+                for (int n = 0; next < end; n++) {
+                    int gate = t * (gates / generators) + n % (gates / generators);
+                    String ticketId = gate % 2 == 1 ? parked.poll() : null;
+                    GateEvent event = ticketId != null ? GateEvent.exit(gate, ticketId, prepaid)
+                            : GateEvent.entry(gate, cars[(n * generators + t) & (cars.length - 1)]);
+                    pipeline.submit(event).whenComplete((ticket, error) -> {
+                        if (event.capturedAtNanos >= measureFrom) {
+                            int slot = recorded.getAndIncrement();
+                            if (slot < latencies.length) latencies[slot] = System.nanoTime() - event.capturedAtNanos;
+                        }
+                        if (error != null) rejected.incrementAndGet();
+                        else if (ticket == null) full.incrementAndGet();
+                        else if (event.type == GateEventType.ENTRY) parked.add(ticket.id);
+                    });
+                    next += interval;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                }
+            });
+            double elapsed = (System.nanoTime() - measureFrom) / 1e9;
+
+            long[] sorted = Arrays.copyOf(latencies, Math.min(recorded.get(), latencies.length));
+            Arrays.sort(sorted);
+            System.out.printf("%d gates, %,d measured events in %.1fs (%,.0f/s): %,d rejected, %,d lot full%n",
+                    gates, sorted.length, elapsed, sorted.length / elapsed, rejected.get(), full.get());
+            System.out.printf("end-to-end latency: p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                    sorted[sorted.length / 2] / 1000.0, sorted[(int) (sorted.length * 0.99)] / 1000.0,
+                    sorted[(int) (sorted.length * 0.999)] / 1000.0, sorted[sorted.length - 1] / 1000.0);
+            for (PipelineStats stats : pipeline.stats()) System.out.println(stats);
+            System.out.println("availability: " + lot.getAvailability());
+        }
+    }
+}
+
+// Cost of the TicketJournal on the park path, and crash recovery time. First 4 threads churn
+// park/unpark on one 4,096-spot floor with no journal, with group commit, and with waitForCommit
+// (over a twentieth of the parks, since each one waits for a force). Then a child JVM parks
+// 1.2 x tickets cars on ten floors, unparks a third of them, parks more into the freed spots, and
+// halts without closing the journal; a second child lays the floors out again and times recover().
+// Each child prints a digest of its open tickets, and the two must match.
+// Run: java -cp <out> TargetedPractice.ParkingLot.TicketJournalBenchmark [parksPerThread] [tickets]
+class TicketJournalBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("crash")) {
+            crash(Path.of(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("recover")) {
+            recover(Path.of(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int parksPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int tickets = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        Path dir = Files.createTempDirectory("ticket-journal");
+        try {
+            parkPath(dir, parksPerThread);
+            Path crashDir = dir.resolve("crash");
+            System.out.println("crash run:");
+            String before = digestLine(child("crash", crashDir.toString(), String.valueOf(tickets)));
+            System.out.println("recovery run:");
+            String after = digestLine(child("recover", crashDir.toString(), String.valueOf(tickets)));
+            ParkStormStressTest.check(before.equals(after), "recovered " + after + ", crashed with " + before);
+            System.out.println("recovered state matches the crashed run");
+        } finally {
+            delete(dir);
+        }
+    }
+
+    static void parkPath(Path dir, int parksPerThread) throws Exception {
+        int threads = 4;
+        ParkingLot lot = ParkingLot.getInstance();
+        ParkingFloor floor = new ParkingFloor();
+        for (int i = 0; i < 4_096; i++) floor.addParkingSpot(new ParkingSpot(ParkingType.MEDIUM));
+        lot.addParkingFloor(floor);
+        List<ParkingFloor> floors = List.of(floor);
+        PaymentStrategy prepaid = amount -> { };
+
+        System.out.printf("%-18s %12s %10s %10s %10s%n", "journal", "parks/s", "p50 us", "p99 us", "p99.9 us");
+        for (int round = 0; round < 2; round++) {
+            for (int mode = 0; mode < 3; mode++) {
+                int parks = mode == 2 ? parksPerThread / 20 : parksPerThread;
+                Path journalDir = dir.resolve("park-path-" + round + "-" + mode);
+                TicketJournal journal = mode == 0 ? null
+                        : new TicketJournal(journalDir, lot, Duration.ofMillis(2), mode == 2, 1 << 20);
+                lot.setTicketJournal(journal);
+                long[][] latencies = new long[threads][parks];
+                long start = System.nanoTime();
+                ParkStormStressTest.run(threads, t -> {
+                    Vehicle car = VehicleFactory.getVehicle("JOURNAL-" + t, VehicleType.CAR);
+                    for (int i = 0; i < parks; i++) {
+                        long t0 = System.nanoTime();
+                        Ticket ticket = lot.parkOn(car, floors);
+                        latencies[t][i] = System.nanoTime() - t0;
+                        lot.checkOut(ticket.id, prepaid);
+                    }
+                });
+                double seconds = (System.nanoTime() - start) / 1e9;
+                lot.setTicketJournal(null);
+                if (journal != null) journal.close();
+                delete(journalDir);
+
+                long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+                System.out.printf("%-18s %,12.0f %10.1f %10.1f %10.1f%n",
+                        mode == 0 ? "none" : mode == 1 ? "group commit" : "wait for commit", all.length / seconds,
+                        all[all.length / 2] / 1000.0, all[(int) (all.length * 0.99)] / 1000.0, all[(int) (all.length * 0.999)] / 1000.0);
+            }
+        }
+    }
+
+    // Ten floors with room for 1.2 x tickets cars, added in the same order on every run.
+    static List<ParkingFloor> layout(ParkingLot lot, int tickets) {
+        List<ParkingFloor> floors = new ArrayList<>();
+        for (int f = 0; f < 10; f++) {
+            ParkingFloor floor = new ParkingFloor(f);
+            for (int i = 0; i < tickets / 10 * 6 / 5; i++) floor.addParkingSpot(new ParkingSpot(ParkingType.MEDIUM));
+            lot.addParkingFloor(floor);
+            floors.add(floor);
+        }
+        return floors;
+    }
+
+    static void crash(Path dir, int tickets) throws IOException {
+        ParkingLot lot = ParkingLot.getInstance();
+        List<ParkingFloor> floors = layout(lot, tickets);
+        PaymentStrategy prepaid = amount -> { };
+        TicketJournal journal = new TicketJournal(dir, lot);
+        lot.setTicketJournal(journal);
+        long start = System.nanoTime();
+        List<String> parked = new ArrayList<>();
+        for (int i = 0; i < tickets / 10 * 12; i++) parked.add(lot.parkOn(VehicleFactory.getVehicle("KA-" + i, VehicleType.CAR), floors).id);
+        for (int i = 0; i < parked.size(); i += 3) lot.checkOut(parked.get(i), prepaid);
+        int open = parked.size() - (parked.size() + 2) / 3;
+        for (int i = 0; open < tickets; i++, open++) lot.parkOn(VehicleFactory.getVehicle("MH-" + i, VehicleType.CAR), floors);
+        System.out.printf("parked and unparked down to %,d open tickets in %.1fs; halting without close()%n",
+                lot.activeTickets().size(), (System.nanoTime() - start) / 1e9);
+        System.out.println(digest(lot));
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+
+    static void recover(Path dir, int tickets) throws IOException {
+        ParkingLot lot = ParkingLot.getInstance();
+        List<ParkingFloor> floors = layout(lot, tickets);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            List<String> names = new ArrayList<>();
+            for (Path file : files) names.add(file.getFileName() + " (" + Files.size(file) / (1 << 20) + " MB)");
+            Collections.sort(names);
+            System.out.println("files: " + names);
+        }
+        try (TicketJournal journal = new TicketJournal(dir, lot)) {
+            long gcBefore = gcMillis(), start = System.nanoTime();
+            int recovered = journal.recover();
+            double millis = (System.nanoTime() - start) / 1e6;
+            lot.setTicketJournal(journal);
+            System.out.printf("recovered %,d tickets in %.0f ms (%d ms of it in GC)%n", recovered, millis, gcMillis() - gcBefore);
+
+            long occupied = floors.stream().flatMap(f -> f.parkingSpots.values().stream()).filter(s -> s.occupied).count();
+            long counted = floors.stream().mapToLong(f -> f.capacity(ParkingType.MEDIUM) - f.freeSpots(ParkingType.MEDIUM)).sum();
+            ParkStormStressTest.check(occupied == recovered, occupied + " occupied spots for " + recovered + " tickets");
+            ParkStormStressTest.check(counted == recovered, counted + " spots counted taken for " + recovered + " tickets");
+            Ticket next = lot.parkOn(VehicleFactory.getVehicle("AFTER-RESTART", VehicleType.CAR), floors);
+            ParkStormStressTest.check(next != null && !lot.activeTickets().stream().anyMatch(t -> t != next && t.spot == next.spot),
+                    "parked onto a recovered car's spot");
+            lot.checkOut(next.id, amount -> { });
+            System.out.println(digest(lot));
+        }
+    }
+
+    static long gcMillis() {
+        return java.lang.management.ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(java.lang.management.GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    // Order-independent hash of every open ticket and where it is parked.
+    static String digest(ParkingLot lot) {
+        long sum = 0;
+        for (Ticket t : lot.activeTickets()) {
+            sum += (t.id + "|" + t.startTime + "|" + t.spot.floor.position + "|" + t.spot.parkingType + "|" + t.spot.slot
+                    + "|" + t.vehicle.id + "|" + t.vehicle.vehicleNo + "|" + t.vehicle.vehicleType).hashCode();
+        }
+        return String.format("digest %d %016x", lot.activeTickets().size(), sum);
+    }
+
+    static String digestLine(List<String> output) {
+        return output.stream().filter(line -> line.startsWith("digest ")).findFirst()
+                .orElseThrow(() -> new IllegalStateException("no digest in child output"));
+    }
+
+    static List<String> child(String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xms3g", "-Xmx3g", "-cp", System.getProperty("java.class.path"), TicketJournalBenchmark.class.getName()));
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                System.out.println("  " + line);
+                lines.add(line);
+            }
+        }
+        int exit = process.waitFor();
+        ParkStormStressTest.check(exit == 0, "child exited with " + exit);
+        return lines;
+    }
+
+    static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) Files.delete(file);
+        }
+    }
+}
+
 public class Solution {
     public static void main(String[] args) throws InterruptedException {
         ParkingLot lot = ParkingLot.getInstance();
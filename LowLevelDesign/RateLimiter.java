@@ -1,8 +1,17 @@
 package LowLevelDesign.RateLimiter;
 
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 // Rate Limiter
 enum RuleType {
@@ -21,12 +30,84 @@ class Rule {
     }
 }
 
+// Concurrent key -> state map split into independently locked shards. Every entry carries an
+// expiry time set by the strategy that owns it (end of its window, or when a bucket would be full
+// again), after which a fresh entry behaves identically. Each shard drops expired entries at most
+// once per sweep interval, on the first access after it, so memory follows the active key set
+// rather than every key ever seen.
+class ShardedKeyStore<V> {
+    static class Entry<V> {
+        final V value;
+        long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Shard<V> {
+        final Map<String, Entry<V>> entries = new HashMap<>();
+        long nextSweepAt;
+    }
+
+    private final Shard<V>[] shards;
+    private final int mask;
+    private final long sweepIntervalMillis;
+
+    public ShardedKeyStore(int shardCount, long sweepIntervalMillis) {
+        int count = Integer.highestOneBit(Math.max(1, shardCount));
+        @SuppressWarnings("unchecked")
+        Shard<V>[] shards = (Shard<V>[]) new Shard<?>[count];
+        this.shards = shards;
+        for (int i = 0; i < count; i++) shards[i] = new Shard<>();
+        this.mask = count - 1;
+        this.sweepIntervalMillis = sweepIntervalMillis;
+    }
+
+    // Runs action on the key's entry under its shard lock, creating the entry if it is missing or
+    // expired. The action should set entry.expiresAt; times are in the caller's millisecond base.
+    public <R> R withEntry(String key, long now, Supplier<V> factory, Function<Entry<V>, R> action) {
+        Shard<V> shard = shardFor(key);
+        synchronized (shard) {
+            if (now >= shard.nextSweepAt) {
+                shard.entries.values().removeIf(entry -> entry.expiresAt <= now);
+                shard.nextSweepAt = now + sweepIntervalMillis;
+            }
+            Entry<V> entry = shard.entries.get(key);
+            if (entry == null || entry.expiresAt <= now) {
+                entry = new Entry<>(factory.get(), now);
+                shard.entries.put(key, entry);
+            }
+            return action.apply(entry);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard<V> shard : shards) {
+            synchronized (shard) {
+                size += shard.entries.size();
+            }
+        }
+        return size;
+    }
+
+    private Shard<V> shardFor(String key) {
+        int h = key.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+}
+
 class Store {
     private static volatile Store instance;
+    private static final int SHARDS = Runtime.getRuntime().availableProcessors() * 16;
+    private static final long SWEEP_INTERVAL_MILLIS = 1_000;
 
-    Map<String, Integer> fixedWindowCounter = new HashMap<>();
-    Map<String, List<Request>> slidingWindowRequests = new HashMap<>();
-    Map<String, TokenBucket> tokenBuckets = new HashMap<>();
+    ShardedKeyStore<WindowCounter> fixedWindowCounter = new ShardedKeyStore<>(SHARDS, SWEEP_INTERVAL_MILLIS);
+    ShardedKeyStore<List<Request>> slidingWindowRequests = new ShardedKeyStore<>(SHARDS, SWEEP_INTERVAL_MILLIS);
+    ShardedKeyStore<TokenBucket> tokenBuckets = new ShardedKeyStore<>(SHARDS, SWEEP_INTERVAL_MILLIS);
+    ShardedKeyStore<WindowCounts> slidingWindowCounts = new ShardedKeyStore<>(SHARDS, SWEEP_INTERVAL_MILLIS);
 
     private Store() {}
 
@@ -36,29 +117,108 @@ class Store {
     }
 }
 
+// Where limiters read the time. SYSTEM reads the OS clock on every call; CoarseClock hands out a
+// value refreshed by a background tick; ManualClock only moves when told to, for tests and
+// simulations.
+interface Clock {
+    long millis();
+
+    Clock SYSTEM = System::currentTimeMillis;
+}
+
+// Reads System.currentTimeMillis() once per tick on a daemon thread, so a decision reads one
+// volatile field instead of the OS clock. Values are stale by up to one tick.
+class CoarseClock implements Clock, Closeable {
+    private volatile long now = System.currentTimeMillis();
+    private volatile boolean running = true;
+    private final Thread ticker;
+
+    public CoarseClock(long tickMillis) {
+        ticker = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(tickMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                now = System.currentTimeMillis();
+            }
+        }, "coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    @Override
+    public long millis() {
+        return now;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        ticker.interrupt();
+    }
+}
+
+class ManualClock implements Clock {
+    private final AtomicLong now;
+
+    public ManualClock(long startMillis) {
+        this.now = new AtomicLong(startMillis);
+    }
+
+    @Override
+    public long millis() {
+        return now.get();
+    }
+
+    public void set(long millis) {
+        now.set(millis);
+    }
+
+    public void advance(long millis) {
+        now.addAndGet(millis);
+    }
+}
+
 class Request {
-    String id;
+    private String id;
     String userId;
     String ip;
     String path;
-    LocalDateTime timeStamp;
+    long timeStamp; // epoch millis
 
     public Request(String userId, String ip, String path) {
-        this.id = UUID.randomUUID().toString();
+        this(userId, ip, path, Clock.SYSTEM.millis());
+    }
+
+    public Request(String userId, String ip, String path, long timeStamp) {
         this.userId = userId;
         this.ip = ip;
         this.path = path;
-        this.timeStamp = LocalDateTime.now();
+        this.timeStamp = timeStamp;
+    }
+
+    // Only generated for requests something actually logs or traces.
+    public String id() {
+        if (id == null) id = UUID.randomUUID().toString();
+        return id;
     }
 }
 
 class RateLimiter {
     Rule rule;
     RateLimiterStrategy rateLimiterStrategy;
+    Clock clock;
 
     public RateLimiter(Rule rule, RateLimiterStrategy rateLimiterStrategy) {
+        this(rule, rateLimiterStrategy, Clock.SYSTEM);
+    }
+
+    public RateLimiter(Rule rule, RateLimiterStrategy rateLimiterStrategy, Clock clock) {
         this.rule = rule;
         this.rateLimiterStrategy = rateLimiterStrategy;
+        this.clock = clock;
     }
 
     public void setRateLimiterStrategy(RateLimiterStrategy s) {
@@ -68,10 +228,205 @@ class RateLimiter {
     public boolean allow(String key, Request req) {
         return rateLimiterStrategy.allow(key, req, rule);
     }
+
+    public boolean allow(String key) {
+        return rateLimiterStrategy.allow(key, new Request(key, null, null, clock.millis()), rule);
+    }
+
+    // Decides a whole batch at one timestamp. Bit i of result is set when keys[i] may take
+    // permits[i] (1 each when permits is null); requests for the same key are decided in array order.
+    public void allowAll(String[] keys, int[] permits, BitSet result) {
+        rateLimiterStrategy.allowAll(new KeyGroups(keys, permits), permits, new Request(null, null, null, clock.millis()), rule, result);
+    }
+
+    public BitSet allowAll(String[] keys) {
+        BitSet result = new BitSet(keys.length);
+        allowAll(keys, null, result);
+        return result;
+    }
 }
 
 interface RateLimiterStrategy {
     boolean allow(String key, Request request, Rule rule);
+
+    // Each distinct key's state is looked up once for the whole batch.
+    void allowAll(KeyGroups batch, int[] permits, Request request, Rule rule, BitSet result);
+
+    // Gives back permits taken by allow for the same key and request, e.g. when another rule
+    // refuses the request. A no-op once the window they were taken in has passed.
+    void release(String key, Request request, Rule rule, int permits);
+}
+
+// Batch positions grouped by key without per-position allocation: distinct keys in first-seen
+// order, the first position of each, and a chain of next positions with the same key.
+class KeyGroups {
+    final String[] keys;
+    final int[] first;
+    final int[] next;
+    final int size;
+
+    // Rejects bad permit counts before anything is decided, so a bad batch changes no state.
+    KeyGroups(String[] batch, int[] permits) {
+        checkPermits(permits, batch.length);
+        Map<String, Integer> groupOf = new HashMap<>();
+        int[] last = new int[batch.length];
+        keys = new String[batch.length];
+        first = new int[batch.length];
+        next = new int[batch.length];
+        int groups = 0;
+        for (int i = 0; i < batch.length; i++) {
+            next[i] = -1;
+            Integer group = groupOf.putIfAbsent(batch[i], groups);
+            if (group == null) {
+                keys[groups] = batch[i];
+                first[groups] = i;
+                last[groups] = i;
+                groups++;
+            } else {
+                next[last[group]] = i;
+                last[group] = i;
+            }
+        }
+        size = groups;
+    }
+
+    static int permits(int[] permits, int position) {
+        if (permits == null) return 1;
+        if (permits[position] <= 0)
+            throw new IllegalArgumentException("permits[" + position + "] must be positive: " + permits[position]);
+        return permits[position];
+    }
+
+    static void checkPermits(int[] permits, int batchSize) {
+        if (permits == null) return;
+        if (permits.length < batchSize)
+            throw new IllegalArgumentException("permits has " + permits.length + " entries for a batch of " + batchSize);
+        for (int i = 0; i < batchSize; i++) permits(permits, i);
+    }
+}
+
+// A rule the composite limiter enforces with a given strategy. A null scope applies it to every
+// request, keyed by the request's user id, ip or path; otherwise only to requests whose attribute
+// equals scope (e.g. an ENDPOINT rule for "/login" only).
+class ScopedRule {
+    final Rule rule;
+    final RateLimiterStrategy strategy;
+    final String scope;
+
+    public ScopedRule(Rule rule, RateLimiterStrategy strategy, String scope) {
+        this.rule = rule;
+        this.strategy = strategy;
+        this.scope = scope;
+    }
+}
+
+// Enforces every matching rule for a request in one call. The rules are compiled up front into an
+// index per rule type: the unscoped rules plus a map from scope value to its rules, so a request
+// costs one hash lookup per type however many scoped rules are configured. Permits are taken rule
+// by rule and, if any rule refuses, the matching rules are walked again in the same order to release
+// the ones already taken, so a refused request consumes nothing and an admitted one allocates only
+// its store keys. Between take and release a concurrent request can see those permits as
+// used, which can only make it stricter, never let more through.
+class CompositeRateLimiter {
+    private static final RuleType[] TYPES = RuleType.values();
+    private static final Compiled[] NONE = new Compiled[0];
+    private static final AtomicLong INSTANCES = new AtomicLong();
+
+    private static class Compiled {
+        final Rule rule;
+        final RateLimiterStrategy strategy;
+        // the store is process-wide, so this keeps two rules of the same type, in this limiter or
+        // another one, from sharing one counter
+        final String keyPrefix;
+
+        Compiled(ScopedRule scoped, long instance, int id) {
+            this.rule = scoped.rule;
+            this.strategy = scoped.strategy;
+            this.keyPrefix = "#" + instance + "." + id + ":";
+        }
+    }
+
+    private static class TypeIndex {
+        Compiled[] unscoped = NONE;
+        Map<String, Compiled[]> scoped = new HashMap<>();
+    }
+
+    private final TypeIndex[] index = new TypeIndex[TYPES.length];
+
+    public CompositeRateLimiter(List<ScopedRule> rules) {
+        long instance = INSTANCES.getAndIncrement();
+        Map<RuleType, List<Compiled>> unscoped = new EnumMap<>(RuleType.class);
+        Map<RuleType, Map<String, List<Compiled>>> scoped = new EnumMap<>(RuleType.class);
+        for (int id = 0; id < rules.size(); id++) {
+            ScopedRule rule = rules.get(id);
+            Compiled compiled = new Compiled(rule, instance, id);
+            if (rule.scope == null)
+                unscoped.computeIfAbsent(rule.rule.ruleType, t -> new ArrayList<>()).add(compiled);
+            else
+                scoped.computeIfAbsent(rule.rule.ruleType, t -> new HashMap<>())
+                        .computeIfAbsent(rule.scope, s -> new ArrayList<>()).add(compiled);
+        }
+
+        for (RuleType type : TYPES) {
+            TypeIndex typeIndex = new TypeIndex();
+            typeIndex.unscoped = unscoped.getOrDefault(type, List.of()).toArray(NONE);
+            for (Map.Entry<String, List<Compiled>> e : scoped.getOrDefault(type, Map.of()).entrySet())
+                typeIndex.scoped.put(e.getKey(), e.getValue().toArray(NONE));
+            index[type.ordinal()] = typeIndex;
+        }
+    }
+
+    public boolean allow(Request request) {
+        int taken = 0;
+        for (RuleType type : TYPES) {
+            String value = attribute(type, request);
+            if (value == null) continue;
+            for (int pass = 0; pass < 2; pass++) {
+                for (Compiled rule : matching(type, value, pass)) {
+                    if (!rule.strategy.allow(rule.keyPrefix + value, request, rule.rule)) {
+                        release(request, taken);
+                        return false;
+                    }
+                    taken++;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Gives back the first count permits taken by allow, visiting the rules in the same order.
+    private void release(Request request, int count) {
+        for (RuleType type : TYPES) {
+            String value = attribute(type, request);
+            if (value == null) continue;
+            for (int pass = 0; pass < 2; pass++) {
+                for (Compiled rule : matching(type, value, pass)) {
+                    if (count-- == 0) return;
+                    rule.strategy.release(rule.keyPrefix + value, request, rule.rule, 1);
+                }
+            }
+        }
+    }
+
+    // Pass 0 is the type's unscoped rules, pass 1 the rules scoped to this value.
+    private Compiled[] matching(RuleType type, String value, int pass) {
+        TypeIndex typeIndex = index[type.ordinal()];
+        return pass == 0 ? typeIndex.unscoped : typeIndex.scoped.getOrDefault(value, NONE);
+    }
+
+    private static String attribute(RuleType type, Request request) {
+        switch (type) {
+            case USER_ID: return request.userId;
+            case IP: return request.ip;
+            case ENDPOINT: return request.path;
+            default: throw new IllegalArgumentException("Unknown rule type " + type);
+        }
+    }
+}
+
+class WindowCounter {
+    long window;
+    int count;
 }
 
 class FixedWindowRateLimiter implements RateLimiterStrategy {
@@ -80,16 +435,54 @@ class FixedWindowRateLimiter implements RateLimiterStrategy {
     @Override
     public boolean allow(String key, Request request, Rule rule) {
 
-        long timestamp = request.timeStamp.toEpochSecond(ZoneOffset.UTC);
+        long timestamp = request.timeStamp / 1000;
+        long window = timestamp / rule.windowSecs;
+
+        return store.fixedWindowCounter.withEntry(key, timestamp * 1000, WindowCounter::new,
+                entry -> take(entry, window, rule, 1));
+    }
+
+    @Override
+    public void allowAll(KeyGroups batch, int[] permits, Request request, Rule rule, BitSet result) {
+
+        long timestamp = request.timeStamp / 1000;
         long window = timestamp / rule.windowSecs;
-        String windowKey = key + ":" + window;
 
-        int count = store.fixedWindowCounter.getOrDefault(windowKey, 0);
+        for (int g = 0; g < batch.size; g++) {
+            int first = batch.first[g];
+            store.fixedWindowCounter.withEntry(batch.keys[g], timestamp * 1000, WindowCounter::new, entry -> {
+                for (int i = first; i >= 0; i = batch.next[i]) {
+                    if (take(entry, window, rule, KeyGroups.permits(permits, i))) result.set(i);
+                    else result.clear(i);
+                }
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public void release(String key, Request request, Rule rule, int permits) {
+        long timestamp = request.timeStamp / 1000;
+        long window = timestamp / rule.windowSecs;
+        store.fixedWindowCounter.withEntry(key, timestamp * 1000, WindowCounter::new, entry -> {
+            WindowCounter counter = entry.value;
+            if (counter.window == window) counter.count = Math.max(0, counter.count - permits);
+            return null;
+        });
+    }
+
+    private static boolean take(ShardedKeyStore.Entry<WindowCounter> entry, long window, Rule rule, int permits) {
+        WindowCounter counter = entry.value;
+        if (counter.window != window) {
+            counter.window = window;
+            counter.count = 0;
+        }
+        entry.expiresAt = (window + 1) * rule.windowSecs * 1000L;
 
-        if (count >= rule.maxReqs)
+        if (counter.count + permits > rule.maxReqs)
             return false;
 
-        store.fixedWindowCounter.put(windowKey, count + 1);
+        counter.count += permits;
         return true;
     }
 }
@@ -99,23 +492,126 @@ class SlidingWindowRateLimiter implements RateLimiterStrategy {
 
     @Override
     public boolean allow(String key, Request request, Rule rule) {
+        return store.slidingWindowRequests.withEntry(key, request.timeStamp, ArrayList::new,
+                entry -> take(entry, request, rule, 1));
+    }
+
+    @Override
+    public void allowAll(KeyGroups batch, int[] permits, Request request, Rule rule, BitSet result) {
+        long now = request.timeStamp;
+        for (int g = 0; g < batch.size; g++) {
+            int first = batch.first[g];
+            store.slidingWindowRequests.withEntry(batch.keys[g], now, ArrayList::new, entry -> {
+                for (int i = first; i >= 0; i = batch.next[i]) {
+                    if (take(entry, request, rule, KeyGroups.permits(permits, i))) result.set(i);
+                    else result.clear(i);
+                }
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public void release(String key, Request request, Rule rule, int permits) {
+        store.slidingWindowRequests.withEntry(key, request.timeStamp, ArrayList::new, entry -> {
+            List<Request> list = entry.value;
+            int left = permits;
+            for (int i = list.size() - 1; i >= 0 && left > 0; i--) {
+                if (list.get(i) == request) {
+                    list.remove(i);
+                    left--;
+                }
+            }
+            return null;
+        });
+    }
 
-        LocalDateTime now = LocalDateTime.now();
-        LocalDateTime windowStart = now.minusSeconds(rule.windowSecs);
+    private static boolean take(ShardedKeyStore.Entry<List<Request>> entry, Request request, Rule rule, int permits) {
+
+        long now = request.timeStamp;
+        long windowMillis = rule.windowSecs * 1000L;
+        long windowStart = now - windowMillis;
+        List<Request> list = entry.value;
 
-        List<Request> list = store.slidingWindowRequests.getOrDefault(key, new ArrayList<>());
-        
         int i = 0;
-        while (i < list.size() && list.get(i).timeStamp.isBefore(windowStart)) {
+        while (i < list.size() && list.get(i).timeStamp < windowStart) {
             i++;
         }
         if (i > 0) list.subList(0, i).clear();
 
-        if (list.size() >= rule.maxReqs)
+        if (list.size() + permits > rule.maxReqs) {
+            if (!list.isEmpty()) entry.expiresAt = list.get(list.size() - 1).timeStamp + windowMillis;
             return false;
+        }
 
-        list.add(request);
-        store.slidingWindowRequests.put(key, list);
+        for (int p = 0; p < permits; p++) list.add(request);
+        entry.expiresAt = now + windowMillis;
+        return true;
+    }
+}
+
+// Two counters per key instead of a list of requests: the sliding count is estimated as
+// previous window's count * (share of it still inside the sliding window) + current count.
+class WindowCounts {
+    long window;
+    int current;
+    int previous;
+}
+
+class SlidingWindowCounterRateLimiter implements RateLimiterStrategy {
+    private final Store store = Store.getInstance();
+
+    @Override
+    public boolean allow(String key, Request request, Rule rule) {
+        long now = request.timeStamp;
+        return store.slidingWindowCounts.withEntry(key, now, WindowCounts::new, entry -> take(entry, now, rule, 1));
+    }
+
+    @Override
+    public void allowAll(KeyGroups batch, int[] permits, Request request, Rule rule, BitSet result) {
+        long now = request.timeStamp;
+        for (int g = 0; g < batch.size; g++) {
+            int first = batch.first[g];
+            store.slidingWindowCounts.withEntry(batch.keys[g], now, WindowCounts::new, entry -> {
+                for (int i = first; i >= 0; i = batch.next[i]) {
+                    if (take(entry, now, rule, KeyGroups.permits(permits, i))) result.set(i);
+                    else result.clear(i);
+                }
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public void release(String key, Request request, Rule rule, int permits) {
+        long now = request.timeStamp;
+        long window = now / (rule.windowSecs * 1000L);
+        store.slidingWindowCounts.withEntry(key, now, WindowCounts::new, entry -> {
+            WindowCounts counts = entry.value;
+            if (counts.window == window) counts.current = Math.max(0, counts.current - permits);
+            return null;
+        });
+    }
+
+    private static boolean take(ShardedKeyStore.Entry<WindowCounts> entry, long now, Rule rule, int permits) {
+
+        long windowMillis = rule.windowSecs * 1000L;
+        long window = now / windowMillis;
+        WindowCounts counts = entry.value;
+
+        if (counts.window != window) {
+            counts.previous = counts.window == window - 1 ? counts.current : 0;
+            counts.current = 0;
+            counts.window = window;
+        }
+        // once the next window starts this one only matters as "previous"; after that, never
+        entry.expiresAt = (window + 2) * windowMillis;
+
+        double unelapsed = 1.0 - (double) (now % windowMillis) / windowMillis;
+        if (counts.previous * unelapsed + counts.current + permits > rule.maxReqs)
+            return false;
+
+        counts.current += permits;
         return true;
     }
 }
@@ -126,15 +622,14 @@ class TokenBucket {
     int refillRatePerSec; // tokens added per second
     long lastRefillTime;  // epoch seconds
 
-    public TokenBucket(int capacity, int refillRatePerSec) {
+    public TokenBucket(int capacity, int refillRatePerSec, long now) {
         this.capacity = capacity;
         this.tokens = capacity;  // bucket starts full
         this.refillRatePerSec = refillRatePerSec;
-        this.lastRefillTime = System.currentTimeMillis() / 1000;
+        this.lastRefillTime = now;
     }
 
-    public void refill() {
-        long now = System.currentTimeMillis() / 1000;
+    public void refill(long now) {
         long seconds = now - lastRefillTime;
 
         int added = (int) (seconds * refillRatePerSec);
@@ -143,6 +638,13 @@ class TokenBucket {
             lastRefillTime = now;
         }
     }
+
+    // Epoch second from which the bucket is full again, i.e. indistinguishable from a new one.
+    public long fullAt(long fallbackSeconds) {
+        if (tokens >= capacity) return lastRefillTime;
+        if (refillRatePerSec <= 0) return lastRefillTime + fallbackSeconds;
+        return lastRefillTime + (capacity - tokens + refillRatePerSec - 1) / refillRatePerSec;
+    }
 }
 
 class TokenBucketRateLimiter implements RateLimiterStrategy {
@@ -151,24 +653,554 @@ class TokenBucketRateLimiter implements RateLimiterStrategy {
     @Override
     public boolean allow(String key, Request request, Rule rule) {
 
-        TokenBucket bucket = store.tokenBuckets.getOrDefault(
-                key,
-                new TokenBucket(rule.maxReqs, rule.maxReqs / rule.windowSecs)
-        );
+        long now = request.timeStamp / 1000;
 
-        bucket.refill();
+        return store.tokenBuckets.withEntry(key, now * 1000, () -> newBucket(rule, now),
+                entry -> take(entry, now, rule, 1));
+    }
 
-        if (bucket.tokens <= 0) {
-            store.tokenBuckets.put(key, bucket);
-            return false;
+    @Override
+    public void allowAll(KeyGroups batch, int[] permits, Request request, Rule rule, BitSet result) {
+        long now = request.timeStamp / 1000;
+        for (int g = 0; g < batch.size; g++) {
+            int first = batch.first[g];
+            store.tokenBuckets.withEntry(batch.keys[g], now * 1000, () -> newBucket(rule, now), entry -> {
+                for (int i = first; i >= 0; i = batch.next[i]) {
+                    if (take(entry, now, rule, KeyGroups.permits(permits, i))) result.set(i);
+                    else result.clear(i);
+                }
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public void release(String key, Request request, Rule rule, int permits) {
+        long now = request.timeStamp / 1000;
+        store.tokenBuckets.withEntry(key, now * 1000, () -> newBucket(rule, now), entry -> {
+            TokenBucket bucket = entry.value;
+            bucket.tokens = Math.min(bucket.capacity, bucket.tokens + permits);
+            entry.expiresAt = Math.max(bucket.fullAt(rule.windowSecs), now + 1) * 1000;
+            return null;
+        });
+    }
+
+    private static TokenBucket newBucket(Rule rule, long now) {
+        return new TokenBucket(rule.maxReqs, rule.maxReqs / rule.windowSecs, now);
+    }
+
+    private static boolean take(ShardedKeyStore.Entry<TokenBucket> entry, long now, Rule rule, int permits) {
+        TokenBucket bucket = entry.value;
+        bucket.refill(now);
+
+        boolean allowed = bucket.tokens >= permits;
+        if (allowed) bucket.tokens -= permits;
+
+        // a bucket that is full again can be dropped; a new one starts full too
+        entry.expiresAt = Math.max(bucket.fullAt(rule.windowSecs), now + 1) * 1000;
+        return allowed;
+    }
+}
+
+// Minimal RESP2 client: sends a command as an array of bulk strings and returns the reply as a
+// String, Long, null or List<Object>. Error replies are thrown. One command, or one pipeline, at a
+// time per connection.
+class RespConnection implements Closeable {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    public RespConnection(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    public synchronized Object command(String... args) {
+        try {
+            writeCommand(out, args);
+            out.flush();
+            return readReply(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Sends every command before reading any reply, so the batch costs one round trip. Replies come
+    // back in order; an error reply is thrown only after all of them are read, so the connection
+    // stays in step.
+    public synchronized List<Object> pipeline(String[]... commands) {
+        try {
+            for (String[] args : commands) writeCommand(out, args);
+            out.flush();
+            List<Object> replies = new ArrayList<>(commands.length);
+            IllegalStateException error = null;
+            for (int i = 0; i < commands.length; i++) {
+                try {
+                    replies.add(readReply(in));
+                } catch (IllegalStateException e) {
+                    if (error == null) error = e;
+                    replies.add(null);
+                }
+            }
+            if (error != null) throw error;
+            return replies;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // INCRBY, then PEXPIRE on the same key, in one round trip; returns the incremented value.
+    public long incrByAndExpire(String key, long amount, long millis) {
+        return (Long) pipeline(new String[]{"INCRBY", key, Long.toString(amount)},
+                new String[]{"PEXPIRE", key, Long.toString(millis)}).get(0);
+    }
+
+    public long incrBy(String key, long amount) {
+        return (Long) command("INCRBY", key, Long.toString(amount));
+    }
+
+    public void pexpire(String key, long millis) {
+        command("PEXPIRE", key, Long.toString(millis));
+    }
+
+    static void writeCommand(OutputStream out, String... args) throws IOException {
+        StringBuilder sb = new StringBuilder().append('*').append(args.length).append("\r\n");
+        for (String arg : args) {
+            byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+            sb.append('$').append(bytes.length).append("\r\n").append(arg).append("\r\n");
+        }
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Object readReply(InputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) throw new EOFException("connection closed");
+        String line = readLine(in);
+        switch (type) {
+            case '+': return line;
+            case '-': throw new IllegalStateException(line);
+            case ':': return Long.parseLong(line);
+            case '$': {
+                int length = Integer.parseInt(line);
+                if (length < 0) return null;
+                byte[] bytes = in.readNBytes(length + 2);
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            case '*': {
+                int length = Integer.parseInt(line);
+                if (length < 0) return null;
+                List<Object> items = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) items.add(readReply(in));
+                return items;
+            }
+            default: throw new IOException("Unexpected reply type " + (char) type);
+        }
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c < 0) throw new EOFException("connection closed");
+            sb.append((char) c);
+        }
+        in.read(); // '\n'
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
+
+// In-process stand-in for a Redis server, enough for the distributed limiter and its benchmark:
+// PING, GET, SET, DEL, INCRBY and PEXPIRE over RESP on a loopback port. Expired keys are dropped
+// when next touched.
+class RespServer implements Closeable {
+    private static class Value {
+        String value;
+        long expiresAt = Long.MAX_VALUE;
+
+        Value(String value) {
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Value> data = new HashMap<>();
+    private final ServerSocket serverSocket;
+
+    public RespServer() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "resp-server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread handler = new Thread(() -> serve(socket), "resp-server-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             InputStream in = new BufferedInputStream(socket.getInputStream());
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            socket.setTcpNoDelay(true);
+            while (true) {
+                Object command;
+                try {
+                    command = RespConnection.readReply(in);
+                } catch (EOFException e) {
+                    return;
+                }
+                List<?> args = (List<?>) command;
+                String[] argv = new String[args.size()];
+                for (int i = 0; i < argv.length; i++) argv[i] = (String) args.get(i);
+                try {
+                    writeReply(out, execute(argv));
+                } catch (RuntimeException e) {
+                    out.write(("-ERR " + e.getMessage() + "\r\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
         }
+    }
+
+    private synchronized Object execute(String[] argv) {
+        long now = System.currentTimeMillis();
+        String name = argv[0].toUpperCase();
+        if (name.equals("PING")) return "PONG";
+
+        Value current = data.get(argv[1]);
+        if (current != null && current.expiresAt <= now) {
+            data.remove(argv[1]);
+            current = null;
+        }
+        switch (name) {
+            case "GET":
+                return current == null ? NULL : current.value;
+            case "SET":
+                data.put(argv[1], new Value(argv[2]));
+                return "OK";
+            case "DEL":
+                return data.remove(argv[1]) == null ? 0L : 1L;
+            case "INCRBY": {
+                long next = (current == null ? 0 : Long.parseLong(current.value)) + Long.parseLong(argv[2]);
+                if (current == null) data.put(argv[1], current = new Value(null));
+                current.value = Long.toString(next);
+                return next;
+            }
+            case "PEXPIRE":
+                if (current == null) return 0L;
+                current.expiresAt = now + Long.parseLong(argv[2]);
+                return 1L;
+            default:
+                throw new IllegalArgumentException("unknown command '" + argv[0] + "'");
+        }
+    }
+
+    private static final Object NULL = new Object();
+
+    private static void writeReply(OutputStream out, Object reply) throws IOException {
+        String encoded;
+        if (reply == NULL) encoded = "$-1\r\n";
+        else if (reply instanceof Long) encoded = ":" + reply + "\r\n";
+        else if (reply.equals("OK") || reply.equals("PONG")) encoded = "+" + reply + "\r\n";
+        else {
+            String value = (String) reply;
+            encoded = "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+        }
+        out.write(encoded.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
+
+// Tokens this node has leased from the shared budget for one key and window.
+class Lease {
+    long window = Long.MIN_VALUE;
+    int remaining;
+    // the shared budget for this window ran out; refuse locally instead of asking again
+    boolean exhausted;
+}
+
+// Fixed-window limit shared by every node talking to the same Redis. The shared counter for a key
+// and window is only moved in chunks: a node INCRBYs leaseSize, keeps whatever part of that chunk
+// was still under the limit and serves requests from it locally, so it pays one round trip (INCRBY
+// and PEXPIRE, pipelined) per lease instead of per request. Nodes can never admit more than the
+// limit between them; what a bigger lease costs is tokens left stranded on one node when the
+// window ends while another node is refusing. Leases are per node, so each node needs its own
+// instance (and connection).
+class DistributedLeaseRateLimiter implements RateLimiterStrategy {
+    private static final int SHARDS = Runtime.getRuntime().availableProcessors() * 16;
+    private static final long SWEEP_INTERVAL_MILLIS = 1_000;
+
+    private final ShardedKeyStore<Lease> leases = new ShardedKeyStore<>(SHARDS, SWEEP_INTERVAL_MILLIS);
+    private final RespConnection redis;
+    private final int leaseSize;
+
+    public DistributedLeaseRateLimiter(RespConnection redis, int leaseSize) {
+        if (leaseSize <= 0) throw new IllegalArgumentException("leaseSize must be positive");
+        this.redis = redis;
+        this.leaseSize = leaseSize;
+    }
+
+    @Override
+    public boolean allow(String key, Request request, Rule rule) {
+        long now = request.timeStamp;
+        Lease lease = leaseFor(key, now, rule);
+        // the round trip happens under this key's lease only, not its whole shard
+        synchronized (lease) {
+            return take(lease, key, now, rule, 1);
+        }
+    }
+
+    @Override
+    public void allowAll(KeyGroups batch, int[] permits, Request request, Rule rule, BitSet result) {
+        long now = request.timeStamp;
+        for (int g = 0; g < batch.size; g++) {
+            Lease lease = leaseFor(batch.keys[g], now, rule);
+            synchronized (lease) {
+                for (int i = batch.first[g]; i >= 0; i = batch.next[i]) {
+                    if (take(lease, batch.keys[g], now, rule, KeyGroups.permits(permits, i))) result.set(i);
+                    else result.clear(i);
+                }
+            }
+        }
+    }
+
+    // Released permits go back into the local lease, not the shared counter.
+    @Override
+    public void release(String key, Request request, Rule rule, int permits) {
+        long now = request.timeStamp;
+        long window = now / (rule.windowSecs * 1000L);
+        Lease lease = leaseFor(key, now, rule);
+        synchronized (lease) {
+            if (lease.window == window) lease.remaining += permits;
+        }
+    }
+
+    private Lease leaseFor(String key, long now, Rule rule) {
+        long windowMillis = rule.windowSecs * 1000L;
+        return leases.withEntry(key, now, Lease::new, entry -> {
+            entry.expiresAt = (now / windowMillis + 1) * windowMillis;
+            return entry.value;
+        });
+    }
 
-        bucket.tokens -= 1;
-        store.tokenBuckets.put(key, bucket);
+    private boolean take(Lease lease, String key, long now, Rule rule, int permits) {
+        long windowMillis = rule.windowSecs * 1000L;
+        long window = now / windowMillis;
+        if (lease.window != window) {
+            lease.window = window;
+            lease.remaining = 0;
+            lease.exhausted = false;
+        }
+        if (lease.remaining < permits && !lease.exhausted) {
+            int chunk = Math.max(permits - lease.remaining, Math.min(leaseSize, rule.maxReqs));
+            String sharedKey = "rl:" + rule.ruleType + ":" + key + ":" + window;
+            // every lease refreshes the expiry in the same round trip, so the key never outlives
+            // its window by more than one window, even if the node that created it died
+            long total = redis.incrByAndExpire(sharedKey, chunk, windowMillis);
+            long granted = Math.max(0, Math.min(chunk, rule.maxReqs - (total - chunk)));
+            lease.remaining += (int) granted;
+            if (granted < chunk) lease.exhausted = true;
+        }
+        if (lease.remaining < permits)
+            return false;
+        lease.remaining -= permits;
         return true;
     }
 }
 
+// Rotates the active key set every simulated minute for 24 simulated hours through every strategy
+// and prints store sizes and retained heap each simulated hour; both should stay flat.
+// Run: java -cp <out> LowLevelDesign.RateLimiter.StoreSoak [activeKeys]
+class StoreSoak {
+    public static void main(String[] args) {
+        int activeKeys = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        Rule rule = new Rule(RuleType.USER_ID, 20, 60);
+        List<RateLimiter> limiters = List.of(
+                new RateLimiter(rule, new FixedWindowRateLimiter()),
+                new RateLimiter(rule, new SlidingWindowRateLimiter()),
+                new RateLimiter(rule, new SlidingWindowCounterRateLimiter()),
+                new RateLimiter(rule, new TokenBucketRateLimiter()));
+        Store store = Store.getInstance();
+
+        long start = LocalDateTime.of(2024, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+        System.out.printf("%-5s %10s %10s %10s %10s %10s%n", "hour", "fixed", "log", "counter", "bucket", "heap MB");
+        for (int minute = 0; minute < 24 * 60; minute++) {
+            for (int k = 0; k < activeKeys; k++) {
+                // half the active set is replaced every minute
+                String key = "user-" + (minute * activeKeys / 2 + k);
+                for (int n = 0; n < 3; n++) {
+                    Request request = new Request(key, "10.0.0." + (k & 255), "/api", start + minute * 60_000L + n * 20_000L);
+                    for (RateLimiter limiter : limiters) limiter.allow(key, request);
+                }
+            }
+            if (minute % 60 == 59) {
+                System.gc();
+                Runtime runtime = Runtime.getRuntime();
+                System.out.printf("%-5d %10d %10d %10d %10d %10.1f%n", minute / 60 + 1,
+                        store.fixedWindowCounter.size(), store.slidingWindowRequests.size(),
+                        store.slidingWindowCounts.size(), store.tokenBuckets.size(),
+                        (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0);
+            }
+        }
+    }
+}
+
+// Time per composite decision as the number of configured endpoint rules grows; with the rule
+// index it should stay roughly flat: the traffic (and so the number of live counters) is the same
+// every round and each request still matches one user, one ip and one endpoint rule.
+// Run: java -cp <out> LowLevelDesign.RateLimiter.CompositeRuleScaling [requests]
+class CompositeRuleScaling {
+    public static void main(String[] args) {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        System.out.printf("%-12s %12s%n", "rules", "ns/request");
+        for (int endpoints : new int[]{10, 1_000, 100_000}) {
+            List<ScopedRule> rules = new ArrayList<>();
+            rules.add(new ScopedRule(new Rule(RuleType.USER_ID, 1_000_000, 60), new FixedWindowRateLimiter(), null));
+            rules.add(new ScopedRule(new Rule(RuleType.IP, 1_000_000, 60), new SlidingWindowCounterRateLimiter(), null));
+            for (int e = 0; e < endpoints; e++)
+                rules.add(new ScopedRule(new Rule(RuleType.ENDPOINT, 1_000_000, 60), new FixedWindowRateLimiter(), "/api/" + e));
+            CompositeRateLimiter limiter = new CompositeRateLimiter(rules);
+
+            Request[] traffic = new Request[1024];
+            for (int i = 0; i < traffic.length; i++)
+                traffic[i] = new Request("user-" + (i % 64), "10.0.0." + (i % 32), "/api/" + (i % 10));
+
+            for (int i = 0; i < requests; i++) limiter.allow(traffic[i & 1023]);
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) limiter.allow(traffic[i & 1023]);
+            System.out.printf("%-12d %12.0f%n", rules.size(), (System.nanoTime() - start) / (double) requests);
+        }
+    }
+}
+
+// Several nodes, each with its own lease limiter and connection, share one RESP store and send
+// skewed traffic for the same keys window by window. For each lease size it prints how many
+// requests were admitted against what an exact shared counter would admit, how many went over
+// the limit, and the p50/p99 time per decision (round trips included).
+// Run: java -cp <out> LowLevelDesign.RateLimiter.DistributedLeaseBenchmark [nodes] [windows]
+class DistributedLeaseBenchmark {
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int windows = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int keys = 8;
+        Rule rule = new Rule(RuleType.USER_ID, 500, 1);
+        long start = LocalDateTime.of(2024, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        try (RespServer server = new RespServer()) {
+            System.out.printf("%-8s %10s %10s %10s %8s %10s %10s%n",
+                    "lease", "exact", "admitted", "over", "error", "p50 us", "p99 us");
+            for (int leaseSize : new int[]{1, 10, 50, 100, 250}) {
+                // a fresh day per lease size so counters from the previous round cannot interfere
+                long day = start + leaseSize * 86_400_000L;
+                long[][] latencies = new long[nodes][];
+                int[][][] admitted = new int[nodes][windows][keys];
+                CyclicBarrier barrier = new CyclicBarrier(nodes);
+                Thread[] threads = new Thread[nodes];
+                for (int n = 0; n < nodes; n++) {
+                    int node = n;
+                    // node n sends (n + 1) shares of the traffic, 1.25x the limit in total
+                    int perWindow = rule.maxReqs * 5 / 4 * (node + 1) / (nodes * (nodes + 1) / 2);
+                    latencies[node] = new long[windows * keys * perWindow];
+                    threads[n] = new Thread(() -> {
+                        try (RespConnection redis = new RespConnection("127.0.0.1", server.port())) {
+                            DistributedLeaseRateLimiter limiter = new DistributedLeaseRateLimiter(redis, leaseSize);
+                            int sample = 0;
+                            for (int w = 0; w < windows; w++) {
+                                barrier.await();
+                                for (int i = 0; i < perWindow; i++) {
+                                    for (int k = 0; k < keys; k++) {
+                                        Request request = new Request("user-" + k, "10.0.0.1", "/api", day + w * 1000L + i);
+                                        long t0 = System.nanoTime();
+                                        if (limiter.allow("user-" + k, request, rule)) admitted[node][w][k]++;
+                                        latencies[node][sample++] = System.nanoTime() - t0;
+                                    }
+                                }
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                    threads[n].start();
+                }
+                for (Thread thread : threads) thread.join();
+
+                int demand = 0;
+                for (int n = 0; n < nodes; n++) demand += rule.maxReqs * 5 / 4 * (n + 1) / (nodes * (nodes + 1) / 2);
+                long exact = (long) Math.min(demand, rule.maxReqs) * windows * keys;
+                long total = 0, over = 0;
+                for (int w = 0; w < windows; w++) {
+                    for (int k = 0; k < keys; k++) {
+                        int sum = 0;
+                        for (int n = 0; n < nodes; n++) sum += admitted[n][w][k];
+                        total += sum;
+                        over += Math.max(0, sum - rule.maxReqs);
+                    }
+                }
+                long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+                System.out.printf("%-8d %10d %10d %10d %7.2f%% %10.1f %10.1f%n", leaseSize, exact, total, over,
+                        100.0 * (exact - total) / exact,
+                        all[all.length / 2] / 1000.0, all[(int) (all.length * 0.99)] / 1000.0);
+            }
+        }
+    }
+}
+
+// Cost of reading the time and building a Request: the old LocalDateTime.now() + UUID pair next to
+// the lightweight Request on the system, coarse and manual clocks.
+// Run: java -cp <out> LowLevelDesign.RateLimiter.ClockOverhead [iterations]
+class ClockOverhead {
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        try (CoarseClock coarse = new CoarseClock(1)) {
+            ManualClock manual = new ManualClock(0);
+            for (int round = 0; round < 2; round++) {
+                System.out.printf("%-30s %8.1f ns%n", "LocalDateTime.now + UUID", time(iterations,
+                        () -> UUID.randomUUID().toString().length() + LocalDateTime.now().getNano()));
+                System.out.printf("%-30s %8.1f ns%n", "Request, system clock", time(iterations,
+                        () -> new Request("u", "ip", "/p", Clock.SYSTEM.millis()).timeStamp));
+                System.out.printf("%-30s %8.1f ns%n", "Request, coarse clock", time(iterations,
+                        () -> new Request("u", "ip", "/p", coarse.millis()).timeStamp));
+                System.out.printf("%-30s %8.1f ns%n", "Request, manual clock", time(iterations,
+                        () -> new Request("u", "ip", "/p", manual.millis()).timeStamp));
+            }
+        }
+    }
+
+    static double time(int iterations, java.util.function.LongSupplier work) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink += work.getAsLong();
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) System.out.println();
+        return (double) elapsed / iterations;
+    }
+}
+
 public class Solution {
     public static void main(String[] args) {
 
@@ -179,5 +1211,28 @@ public class Solution {
             boolean allowed = limiter.allow("USER_1", new Request("USER_1", "1.1.1.1", "/login"));
             System.out.println("Request " + i + " allowed = " + allowed);
         }
+
+        RateLimiter batchLimiter = new RateLimiter(new Rule(RuleType.USER_ID, 2, 10), new TokenBucketRateLimiter());
+        String[] batch = {"USER_2", "USER_3", "USER_2", "USER_2", "USER_3"};
+        System.out.println("Batch " + Arrays.toString(batch) + " allowed positions = " + batchLimiter.allowAll(batch));
+
+        // a manual clock puts the requests on either side of a window boundary exactly
+        ManualClock clock = new ManualClock(9_999);
+        RateLimiter fixedWindow = new RateLimiter(new Rule(RuleType.USER_ID, 2, 10), new FixedWindowRateLimiter(), clock);
+        for (int i = 0; i < 3; i++)
+            System.out.println("t=9.999s request " + i + " allowed = " + fixedWindow.allow("USER_5"));
+        clock.advance(1);
+        System.out.println("t=10.000s request 3 allowed = " + fixedWindow.allow("USER_5"));
+
+        // the /login rule refuses the third login; the user and ip permits it took are given back
+        CompositeRateLimiter composite = new CompositeRateLimiter(List.of(
+                new ScopedRule(new Rule(RuleType.USER_ID, 4, 10), new FixedWindowRateLimiter(), null),
+                new ScopedRule(new Rule(RuleType.IP, 10, 10), new TokenBucketRateLimiter(), null),
+                new ScopedRule(new Rule(RuleType.ENDPOINT, 2, 10), new SlidingWindowRateLimiter(), "/login")));
+        String[] paths = {"/login", "/login", "/login", "/login", "/home", "/home", "/home"};
+        for (String path : paths) {
+            boolean allowed = composite.allow(new Request("USER_4", "2.2.2.2", path));
+            System.out.println("Composite " + path + " allowed = " + allowed);
+        }
     }
 }